@@ -22,6 +22,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -64,6 +66,21 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides iterator (possibly empty) over the same {@link Record}s as {@link #range(ByteBuffer, ByteBuffer)}
+     * does, but in <b>descending</b> order: from the last key before "to" (exclusive) down to "from" (inclusive).
+     * E.g. the latest N records before key X are the first N records of descendingRange(empty key, X).
+     * This implementation reads the whole range, the implementations should iterate it backwards natively.
+     */
+    @NotNull
+    default Iterator<Record> descendingRange(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final Deque<Record> records = new ArrayDeque<>();
+        range(from, to).forEachRemaining(records::addFirst);
+        return records.iterator();
+    }
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -96,6 +113,28 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Applies all the updates of the batch in their order.
+     * Implementations may apply the batch atomically, this one applies the updates one by one.
+     */
+    default void write(@NotNull WriteBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); ++i) {
+            final ByteBuffer value = batch.valueAt(i);
+            if (value == null) {
+                remove(batch.keyAt(i));
+            } else {
+                upsert(batch.keyAt(i), value);
+            }
+        }
+    }
+
+    /**
+     * Takes the point-in-time view of the storage which sees the updates made before the call.
+     * The caller must close the snapshot.
+     */
+    @NotNull
+    Snapshot snapshot() throws IOException;
+
     /**
      * Perform compaction
      */
@@ -0,0 +1,73 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Point-in-time view of the storage obtained by {@link DAO#snapshot()}.
+ * It sees the updates made before it was taken and none of the later ones,
+ * so a long scan through it sees a consistent state while the writes go on.
+ * The storage keeps the versions the snapshot sees until it is closed, so it must be closed as soon as possible.
+ * Snapshots are thread-safe.
+ */
+public interface Snapshot extends Closeable {
+
+    /**
+     * Provides iterator over {@link Record}s starting at "from" key (inclusive) in <b>ascending</b> order
+     * as {@link DAO#iterator(ByteBuffer)} does at the moment of the snapshot.
+     */
+    @NotNull
+    default Iterator<Record> iterator(@NotNull ByteBuffer from) throws IOException {
+        return range(from, null);
+    }
+
+    /**
+     * Provides iterator over {@link Record}s from "from" key (inclusive) until "to" key (exclusive)
+     * in <b>ascending</b> order as {@link DAO#range(ByteBuffer, ByteBuffer)} does at the moment of the snapshot.
+     */
+    @NotNull
+    Iterator<Record> range(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException;
+
+    /**
+     * Provides the same {@link Record}s as {@link #range(ByteBuffer, ByteBuffer)} does, but in <b>descending</b> order.
+     * This implementation reads the whole range, the implementations should iterate it backwards natively.
+     */
+    @NotNull
+    default Iterator<Record> descendingRange(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final Deque<Record> records = new ArrayDeque<>();
+        range(from, to).forEachRemaining(records::addFirst);
+        return records.iterator();
+    }
+
+    /**
+     * Obtains the value of the given key at the moment of the snapshot.
+     *
+     * @throws NoSuchElementException if no such record
+     */
+    @NotNull
+    default ByteBuffer get(@NotNull ByteBuffer key) throws IOException, NoSuchElementException {
+        final Iterator<Record> iter = iterator(key);
+        if (!iter.hasNext()) {
+            throw new NoSuchElementException("Not found");
+        }
+
+        final Record next = iter.next();
+        if (next.getKey().equals(key)) {
+            return next.getValue();
+        } else {
+            throw new NoSuchElementException("Not found");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered set of updates which is applied by {@link DAO#write(WriteBatch)} at once.
+ * If the batch contains several updates of the same key, the last one wins.
+ * The batch isn't thread-safe.
+ */
+public final class WriteBatch {
+
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    //null value means that the key is removed
+    private final List<ByteBuffer> values = new ArrayList<>();
+
+    /**
+     * Adds the insert or update of value by given key.
+     */
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        keys.add(key.duplicate());
+        values.add(value.duplicate());
+        return this;
+    }
+
+    /**
+     * Adds the removal of value by given key.
+     */
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        keys.add(key.duplicate());
+        values.add(null);
+        return this;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    public void clear() {
+        keys.clear();
+        values.clear();
+    }
+
+    @NotNull
+    public ByteBuffer keyAt(final int index) {
+        return keys.get(index).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the value of the update or null if the update is a removal.
+     */
+    @Nullable
+    public ByteBuffer valueAt(final int index) {
+        final ByteBuffer value = values.get(index);
+        return value == null ? null : value.asReadOnlyBuffer();
+    }
+}
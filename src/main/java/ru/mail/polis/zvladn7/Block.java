@@ -0,0 +1,147 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Sorted block of entries.
+ * Block structure.
+ * * [ entries ]
+ * * [ entries offset ]
+ * * amount of entries
+ * Every entry starts with key size | key, the rest of it depends on the kind of block.
+ */
+final class Block {
+
+    private static final long SIGN_BITS = 0x8080808080808080L;
+
+    private final ByteBuffer buffer;
+    private final int amountOfEntries;
+    private final int shiftToOffsetsArray;
+
+    Block(@NotNull final ByteBuffer buffer) {
+        this.buffer = buffer;
+        final int limit = buffer.limit();
+        this.amountOfEntries = buffer.getInt(limit - Integer.BYTES);
+        this.shiftToOffsetsArray = limit - Integer.BYTES * (1 + amountOfEntries);
+    }
+
+    int size() {
+        return amountOfEntries;
+    }
+
+    int sizeInBytes() {
+        return buffer.limit();
+    }
+
+    @NotNull
+    ByteBuffer keyAt(final int position) {
+        final int entryOffset = entryOffset(position);
+        return slice(entryOffset + Integer.BYTES, buffer.getInt(entryOffset));
+    }
+
+    /**
+     * Returns the position of the first entry which key is not less than the given one
+     * or {@link #size()} if there is no such entry.
+     */
+    int lowerBound(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = amountOfEntries;
+        while (left < right) {
+            final int mid = (left + right) >>> 1;
+            if (compareKeyAt(mid, key) < 0) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+
+        return left;
+    }
+
+    /**
+     * Compares the key of the entry with the given one in the same way as {@link ByteBuffer#compareTo}
+     * does, but without creating a view of the entry's key.
+     * Keys are compared by 8 bytes at once: flipping the sign bit of every byte makes
+     * the unsigned comparison of big-endian longs equal to the comparison of signed bytes.
+     */
+    int compareKeyAt(final int position, @NotNull final ByteBuffer key) {
+        final int entryOffset = entryOffset(position);
+        final int keySize = buffer.getInt(entryOffset);
+        final int keyOffset = entryOffset + Integer.BYTES;
+        final int otherOffset = key.position();
+        final int length = Math.min(keySize, key.remaining());
+        int i = 0;
+        if (key.order() == ByteOrder.BIG_ENDIAN) {
+            for (; i + Long.BYTES <= length; i += Long.BYTES) {
+                final long word = buffer.getLong(keyOffset + i);
+                final long otherWord = key.getLong(otherOffset + i);
+                if (word != otherWord) {
+                    return Long.compareUnsigned(word ^ SIGN_BITS, otherWord ^ SIGN_BITS);
+                }
+            }
+        }
+        for (; i < length; ++i) {
+            final int result = Byte.compare(buffer.get(keyOffset + i), key.get(otherOffset + i));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(keySize, key.remaining());
+    }
+
+    /**
+     * Returns the offset of entry's part which follows the key.
+     */
+    int payloadOffset(final int position) {
+        final int entryOffset = entryOffset(position);
+        return entryOffset + Integer.BYTES + buffer.getInt(entryOffset);
+    }
+
+    int getInt(final int offset) {
+        return buffer.getInt(offset);
+    }
+
+    long getLong(final int offset) {
+        return buffer.getLong(offset);
+    }
+
+    /**
+     * Data block entry structure.
+     * key size | key | sequence | value size | value
+     * if value size is -1 than value is absent
+     * The versions of a key are stored from the newest to the oldest one.
+     */
+    @NotNull
+    Cell cellAt(final int position) {
+        return new Cell(keyAt(position), valueAt(position));
+    }
+
+    @NotNull
+    Value valueAt(final int position) {
+        final int sequenceOffset = payloadOffset(position);
+        final long sequence = buffer.getLong(sequenceOffset);
+        final int valueSize = buffer.getInt(sequenceOffset + Long.BYTES);
+
+        if (valueSize == -1) {
+            return Value.newTombstoneValue(sequence);
+        }
+        return new Value(sequence, slice(sequenceOffset + Long.BYTES + Integer.BYTES, valueSize));
+    }
+
+    long sequenceAt(final int position) {
+        return buffer.getLong(payloadOffset(position));
+    }
+
+    private int entryOffset(final int position) {
+        return buffer.getInt(shiftToOffsetsArray + position * Integer.BYTES);
+    }
+
+    private ByteBuffer slice(final int offset, final int length) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        return slice.slice();
+    }
+}
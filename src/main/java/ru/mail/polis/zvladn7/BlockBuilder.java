@@ -0,0 +1,66 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Accumulates entries of one {@link Block} in memory.
+ * Data blocks are encoded right into the write buffer by {@link SSTableWriter}, so it is used for the index block.
+ */
+final class BlockBuilder {
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    private final IntArray offsets = new IntArray(INITIAL_CAPACITY / Integer.BYTES);
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+    /**
+     * Index block entry structure.
+     * key size | key | block offset | block size
+     * The key is not greater than the first key of the block and greater than the last key of the previous block.
+     */
+    void addBlockHandle(@NotNull final ByteBuffer separator, final long blockOffset, final int blockSize) {
+        startEntry(separator, Long.BYTES + Integer.BYTES);
+        buffer.putLong(blockOffset);
+        buffer.putInt(blockSize);
+    }
+
+    /**
+     * Appends the offsets array to the entries and returns the whole block ready to be written.
+     * The builder must be {@link #reset()} before adding new entries.
+     */
+    @NotNull
+    ByteBuffer build() {
+        ensureCapacity(Integer.BYTES * (offsets.size() + 1));
+        for (int i = 0; i < offsets.size(); ++i) {
+            buffer.putInt(offsets.get(i));
+        }
+        buffer.putInt(offsets.size());
+        return buffer.flip();
+    }
+
+    void reset() {
+        buffer.clear();
+        offsets.clear();
+    }
+
+    private void startEntry(@NotNull final ByteBuffer key, final int payloadSize) {
+        final int keySize = key.remaining();
+        ensureCapacity(Integer.BYTES + keySize + payloadSize);
+        offsets.add(buffer.position());
+        buffer.putInt(keySize);
+        buffer.put(key.duplicate());
+    }
+
+    private void ensureCapacity(final int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        final int required = buffer.position() + bytes;
+        final ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+}
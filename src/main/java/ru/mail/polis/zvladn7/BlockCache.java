@@ -0,0 +1,401 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of SSTable data blocks shared by all the tables of one DAO.
+ * Blocks are identified by the id of their table and their offset in the file.
+ * Table ids are never reused, so the blocks of a replaced table can't be mistaken for the blocks of its successor.
+ * Eviction policy is W-TinyLFU: new blocks get into a small LRU window, and the blocks leaving it
+ * are admitted to the main segmented LRU only if they are accessed more frequently than its victim.
+ * So a long scan can't wash the frequently used blocks out of the cache.
+ * Cached blocks are copies, optionally allocated out of the Java heap. The hits don't touch the mapped pages,
+ * so the OS can reclaim them, and the hot blocks don't depend on the page cache which compactions and scans
+ * wash out. A block is copied only on its second access, the blocks read once are served from the mapping.
+ * The cache is split into shards with their own locks and eviction, the block's shard is chosen by its key.
+ */
+final class BlockCache {
+
+    //overhead of the cache structures per block, approximately
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int MAX_SHARDS = 16;
+    //every shard should hold at least this amount of blocks, so the small caches aren't split
+    private static final int MIN_BLOCKS_PER_SHARD = 64;
+    //amount of accesses after which the block is copied to the cache
+    private static final int ADMISSION_FREQUENCY = 2;
+
+    private final boolean offHeap;
+    private final Shard[] shards;
+    private final CacheStats stats = new CacheStats();
+
+    /**
+     * Creates an empty cache.
+     * @param capacity - max amount of bytes of the cached blocks.
+     * @param offHeap - whether the cached blocks should be allocated out of the Java heap.
+     */
+    BlockCache(final long capacity, final boolean offHeap) {
+        this.offHeap = offHeap;
+        final long maxShards = capacity / ((long) SSTable.BLOCK_SIZE * MIN_BLOCKS_PER_SHARD);
+        final int amountOfShards = Integer.highestOneBit((int) Math.max(1, Math.min(MAX_SHARDS, maxShards)));
+        this.shards = new Shard[amountOfShards];
+        for (int i = 0; i < amountOfShards; ++i) {
+            shards[i] = new Shard(capacity / amountOfShards, stats);
+        }
+    }
+
+    @NotNull
+    CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Returns the amount of bytes of the cached blocks together with the overhead of the cache structures.
+     */
+    long sizeInBytes() {
+        long size = 0;
+        for (final Shard shard : shards) {
+            size += shard.sizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the cached block or null if it isn't cached.
+     */
+    @Nullable
+    Block get(final long tableId, final long offset) {
+        final BlockKey key = new BlockKey(tableId, offset);
+        return shardFor(key).get(key);
+    }
+
+    /**
+     * Puts the copy of the block to the cache if the block has been accessed before.
+     * @return the block over the cached copy or over the given buffer if the block isn't cached.
+     */
+    @NotNull
+    Block put(final long tableId, final long offset, @NotNull final ByteBuffer block) {
+        final BlockKey key = new BlockKey(tableId, offset);
+        final Shard shard = shardFor(key);
+        if (!shard.shouldAdmit(key)) {
+            return new Block(block);
+        }
+
+        //the copy is made out of the lock
+        final ByteBuffer copy = offHeap
+                ? ByteBuffer.allocateDirect(block.remaining())
+                : ByteBuffer.allocate(block.remaining());
+        copy.put(block.duplicate()).flip();
+        return shard.put(new Node(key, new Block(copy.asReadOnlyBuffer())));
+    }
+
+    /**
+     * Removes all the blocks of the table.
+     */
+    void invalidate(final long tableId) {
+        for (final Shard shard : shards) {
+            shard.invalidate(tableId);
+        }
+    }
+
+    @NotNull
+    private Shard shardFor(@NotNull final BlockKey key) {
+        final int hash = key.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+    }
+
+    /**
+     * Part of the cache with its own lock and eviction.
+     */
+    private static final class Shard {
+        private final long capacity;
+        private final long windowCapacity;
+        private final long protectedCapacity;
+        private final CacheStats stats;
+
+        private final Map<BlockKey, Node> nodes = new HashMap<>();
+        //keys of the cached blocks by the table id, so a table is invalidated without scanning all the blocks
+        private final Map<Long, Set<BlockKey>> tableKeys = new HashMap<>();
+        private final Segment window = new Segment();
+        private final Segment probation = new Segment();
+        private final Segment protectedSegment = new Segment();
+        private final FrequencySketch sketch;
+
+        Shard(final long capacity, @NotNull final CacheStats stats) {
+            this.capacity = capacity;
+            this.windowCapacity = Math.max(1, capacity * WINDOW_PERCENT / 100);
+            this.protectedCapacity = (capacity - windowCapacity) * PROTECTED_PERCENT / 100;
+            this.stats = stats;
+            this.sketch = new FrequencySketch(capacity / SSTable.BLOCK_SIZE);
+        }
+
+        @Nullable
+        synchronized Block get(@NotNull final BlockKey key) {
+            sketch.increment(key.hashCode());
+            final Node node = nodes.get(key);
+            if (node == null) {
+                stats.recordMiss();
+                return null;
+            }
+            stats.recordHit();
+            onHit(node);
+            return node.block;
+        }
+
+        synchronized long sizeInBytes() {
+            return window.weight + probation.weight + protectedSegment.weight;
+        }
+
+        synchronized boolean shouldAdmit(@NotNull final BlockKey key) {
+            return !nodes.containsKey(key) && sketch.frequency(key.hashCode()) >= ADMISSION_FREQUENCY;
+        }
+
+        @NotNull
+        synchronized Block put(@NotNull final Node node) {
+            final Node existing = nodes.get(node.key);
+            if (existing != null) {
+                return existing.block;
+            }
+            if (node.weight > capacity) {
+                return node.block;
+            }
+
+            nodes.put(node.key, node);
+            tableKeys.computeIfAbsent(node.key.tableId, id -> new HashSet<>()).add(node.key);
+            window.addLast(node);
+            evict();
+            return node.block;
+        }
+
+        synchronized void invalidate(final long tableId) {
+            final Set<BlockKey> keys = tableKeys.remove(tableId);
+            if (keys == null) {
+                return;
+            }
+            for (final BlockKey key : keys) {
+                final Node node = nodes.remove(key);
+                node.segment.remove(node);
+            }
+        }
+
+        private void onHit(@NotNull final Node node) {
+            if (node.segment == window) {
+                window.moveToEnd(node);
+            } else if (node.segment == probation) {
+                probation.remove(node);
+                node.candidate = false;
+                protectedSegment.addLast(node);
+                while (protectedSegment.weight > protectedCapacity) {
+                    final Node demoted = protectedSegment.first();
+                    protectedSegment.remove(demoted);
+                    probation.addLast(demoted);
+                }
+            } else {
+                protectedSegment.moveToEnd(node);
+            }
+        }
+
+        private void evict() {
+            while (window.weight > windowCapacity) {
+                final Node candidate = window.first();
+                window.remove(candidate);
+                candidate.candidate = true;
+                probation.addLast(candidate);
+            }
+
+            while (window.weight + probation.weight + protectedSegment.weight > capacity) {
+                final Node victim = probation.isEmpty() ? protectedSegment.first() : probation.first();
+                final Node candidate = probation.last();
+                if (candidate != null && candidate != victim && candidate.candidate
+                        && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                    remove(candidate);
+                } else {
+                    remove(victim);
+                }
+            }
+        }
+
+        private void remove(@NotNull final Node node) {
+            node.segment.remove(node);
+            nodes.remove(node.key);
+            final Set<BlockKey> keys = tableKeys.get(node.key.tableId);
+            keys.remove(node.key);
+            if (keys.isEmpty()) {
+                tableKeys.remove(node.key.tableId);
+            }
+            stats.recordEviction();
+        }
+    }
+
+    private static final class BlockKey {
+        private final long tableId;
+        private final long offset;
+
+        BlockKey(final long tableId, final long offset) {
+            this.tableId = tableId;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            final BlockKey other = (BlockKey) o;
+            return tableId == other.tableId && offset == other.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(tableId * 0x9E3779B97F4A7C15L + offset);
+        }
+    }
+
+    private static final class Node {
+        private final BlockKey key;
+        private final Block block;
+        private final int weight;
+        private Segment segment;
+        private Node prev;
+        private Node next;
+        //came from the window and haven't been accessed in the main space yet
+        private boolean candidate;
+
+        Node(@NotNull final BlockKey key, @NotNull final Block block) {
+            this.key = key;
+            this.block = block;
+            this.weight = block.sizeInBytes() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * LRU list of nodes, the first node is the least recently used.
+     */
+    private static final class Segment {
+        private Node head;
+        private Node tail;
+        private long weight;
+
+        boolean isEmpty() {
+            return head == null;
+        }
+
+        @Nullable
+        Node first() {
+            return head;
+        }
+
+        @Nullable
+        Node last() {
+            return tail;
+        }
+
+        void addLast(@NotNull final Node node) {
+            node.segment = this;
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(@NotNull final Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToEnd(@NotNull final Node node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters which estimates how often the blocks are accessed.
+     * All the counters are halved periodically, so the old history fades away.
+     * A row has many counters per cached block, so the collisions rarely add up to the admission frequency
+     * and the blocks read once stay out of the cache.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNTER = 15;
+        private static final int COUNTERS_PER_ENTRY = 16;
+        //amount of accesses per cached block after which the counters are halved
+        private static final int SAMPLE_PER_ENTRY = 10;
+        private static final int[] SEEDS = {0x97CB3127, 0xB4F3C9B1, 0x85EBCA6B, 0xC2B2AE35};
+
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(final long expectedEntries) {
+            final long entries = Math.max(1, Math.min(expectedEntries, 1 << 20));
+            final int width = Integer.highestOneBit((int) Math.max(64, entries * COUNTERS_PER_ENTRY));
+            this.counters = new byte[width * DEPTH];
+            this.mask = width - 1;
+            this.sampleSize = (int) Math.max(64, entries * SAMPLE_PER_ENTRY);
+        }
+
+        void increment(final int hash) {
+            for (int i = 0; i < DEPTH; ++i) {
+                final int index = index(hash, i);
+                if (counters[index] < MAX_COUNTER) {
+                    ++counters[index];
+                }
+            }
+            if (++additions == sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(final int hash) {
+            int frequency = MAX_COUNTER;
+            for (int i = 0; i < DEPTH; ++i) {
+                frequency = Math.min(frequency, counters[index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int index(final int hash, final int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+
+        private void reset() {
+            for (int i = 0; i < counters.length; ++i) {
+                counters[i] = (byte) (counters[i] >> 1);
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bloom filter over the keys of one SSTable.
+ * Serialized structure.
+ * amount of hash functions | [ bits as longs ]
+ * The filter works directly over its serialized form, so it is read from the mapped file without copying.
+ */
+final class BloomFilter {
+
+    private static final long SEED = 0x2545F4914F6CDD1DL;
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final int MAX_HASH_FUNCTIONS = 30;
+
+    private final ByteBuffer buffer;
+    private final int amountOfHashFunctions;
+    private final long amountOfBits;
+
+    BloomFilter(@NotNull final ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.amountOfHashFunctions = buffer.getInt(0);
+        this.amountOfBits = (long) (buffer.limit() - Integer.BYTES) / Long.BYTES * Long.SIZE;
+    }
+
+    /**
+     * Creates an empty filter for the given amount of keys.
+     * @param expectedKeys - upper bound of amount of keys which will be added.
+     * @param bitsPerKey - amount of bits of the filter per key, it defines the false positive rate.
+     */
+    @NotNull
+    static BloomFilter create(final int expectedKeys, final int bitsPerKey) {
+        final long bits = Math.max(Long.SIZE, (long) expectedKeys * bitsPerKey);
+        final int words = (int) Math.min(
+                (bits + Long.SIZE - 1) / Long.SIZE,
+                (Integer.MAX_VALUE - Integer.BYTES) / Long.BYTES);
+        final int hashFunctions = (int) Math.max(1, Math.min(MAX_HASH_FUNCTIONS, Math.round(bitsPerKey * Math.log(2))));
+
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + words * Long.BYTES);
+        buffer.putInt(0, hashFunctions);
+        return new BloomFilter(buffer);
+    }
+
+    void add(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        final long delta = Long.rotateRight(hash, 17) | 1;
+        long current = hash;
+        for (int i = 0; i < amountOfHashFunctions; ++i) {
+            final long bit = (current & Long.MAX_VALUE) % amountOfBits;
+            final int wordOffset = wordOffset(bit);
+            buffer.putLong(wordOffset, buffer.getLong(wordOffset) | 1L << bit);
+            current += delta;
+        }
+    }
+
+    /**
+     * Returns false if the key which {@link #hash(ByteBuffer)} is given was definitely not added to the filter.
+     */
+    boolean mightContain(final long hash) {
+        final long delta = Long.rotateRight(hash, 17) | 1;
+        long current = hash;
+        for (int i = 0; i < amountOfHashFunctions; ++i) {
+            final long bit = (current & Long.MAX_VALUE) % amountOfBits;
+            if ((buffer.getLong(wordOffset(bit)) & 1L << bit) == 0) {
+                return false;
+            }
+            current += delta;
+        }
+        return true;
+    }
+
+    @NotNull
+    ByteBuffer serialized() {
+        return buffer.duplicate().clear();
+    }
+
+    private static int wordOffset(final long bit) {
+        return Integer.BYTES + (int) (bit / Long.SIZE) * Long.BYTES;
+    }
+
+    /**
+     * Hash of the key's remaining bytes: they are mixed by 8 bytes at once and
+     * the result is finished by the final mix of MurmurHash3.
+     * Doesn't depend on the byte order of the buffer and doesn't change its position,
+     * so it may be computed once and checked against the filters of all the tables.
+     */
+    static long hash(@NotNull final ByteBuffer key) {
+        final boolean bigEndian = key.order() == ByteOrder.BIG_ENDIAN;
+        final int limit = key.limit();
+        long hash = SEED ^ key.remaining() * MULTIPLIER;
+        int i = key.position();
+        for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+            final long word = bigEndian ? key.getLong(i) : Long.reverseBytes(key.getLong(i));
+            hash = Long.rotateLeft(hash ^ word * MULTIPLIER, 31) * MULTIPLIER;
+        }
+        for (; i < limit; ++i) {
+            hash = Long.rotateLeft(hash ^ (key.get(i) & 0xFF) * MULTIPLIER, 31) * MULTIPLIER;
+        }
+        return finalMix(hash);
+    }
+
+    private static long finalMix(final long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
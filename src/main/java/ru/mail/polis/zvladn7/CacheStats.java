@@ -0,0 +1,47 @@
+package ru.mail.polis.zvladn7;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the block cache.
+ */
+public final class CacheStats {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Amount of blocks removed from the cache to free the space, including the rejected new ones.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + getHits()
+                + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + '}';
+    }
+}
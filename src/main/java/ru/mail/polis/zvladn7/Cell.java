@@ -22,6 +22,13 @@ public class Cell {
         return key.asReadOnlyBuffer();
     }
 
+    /**
+     * Returns the key itself rather than a view of it, so it must not be modified or passed outside.
+     */
+    ByteBuffer key() {
+        return key;
+    }
+
     public Value getValue() {
         return value;
     }
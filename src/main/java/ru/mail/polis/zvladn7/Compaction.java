@@ -0,0 +1,67 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compaction chosen by the {@link CompactionPolicy}: the tables to merge and where to put the result.
+ * The tables of a deeper output level must not overlap the merged ones unless they are merged too,
+ * and the tables above the output level which are not merged must not overlap them unless they are newer.
+ * So only the oldest flushed tables may be merged into the deeper levels.
+ * A compaction of a single table to a deeper level which doesn't overlap anything there just moves the table.
+ */
+public final class Compaction {
+
+    private final List<TableInfo> inputs;
+    private final int outputLevel;
+    private final long maxOutputTableSize;
+
+    /**
+     * Creates the compaction.
+     * @param inputs - the tables to merge.
+     * @param outputLevel - the level of the result, not less than the levels of the inputs.
+     *                    The result put to level 0 is a single table which takes the place of the newest input,
+     *                    so the inputs must be a contiguous run of the level 0 tables.
+     * @param maxOutputTableSize - the result put to a deeper level is split into the tables of about this size.
+     */
+    public Compaction(
+            @NotNull final List<TableInfo> inputs,
+            final int outputLevel,
+            final long maxOutputTableSize) {
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("Compaction must have inputs");
+        }
+        if (maxOutputTableSize <= 0) {
+            throw new IllegalArgumentException("Table size must be positive: " + maxOutputTableSize);
+        }
+        for (final TableInfo input : inputs) {
+            if (input.getLevel() > outputLevel) {
+                throw new IllegalArgumentException("Table can't be compacted to the upper level: " + input);
+            }
+        }
+        this.inputs = Collections.unmodifiableList(new ArrayList<>(inputs));
+        this.outputLevel = outputLevel;
+        this.maxOutputTableSize = maxOutputTableSize;
+    }
+
+    @NotNull
+    public List<TableInfo> getInputs() {
+        return inputs;
+    }
+
+    public int getOutputLevel() {
+        return outputLevel;
+    }
+
+    public long getMaxOutputTableSize() {
+        return maxOutputTableSize;
+    }
+
+    @Override
+    public String toString() {
+        return "Compaction{inputs=" + inputs + ", outputLevel=" + outputLevel + '}';
+    }
+}
@@ -0,0 +1,33 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Decides which SSTables are merged by the background compaction.
+ * The policy is asked after every flush and after every compaction until it picks nothing.
+ */
+@FunctionalInterface
+public interface CompactionPolicy {
+
+    /**
+     * Chooses the tables to merge.
+     * @param tables - all the SSTables from the oldest to the newest:
+     *               from the deepest level to level 0, the tables of a deeper level are sorted by keys.
+     * @return the compaction or null if no compaction is needed.
+     */
+    @Nullable
+    Compaction pickCompaction(@NotNull List<TableInfo> tables);
+
+    /**
+     * Chooses how all the tables are merged by {@link LsmDAOImpl#compact()}.
+     * By default they are merged into one table of the deepest level.
+     * @param tables - all the SSTables in the same order as for {@link #pickCompaction(List)}, not empty.
+     */
+    @NotNull
+    default Compaction fullCompaction(@NotNull final List<TableInfo> tables) {
+        return new Compaction(tables, tables.get(0).getLevel(), Long.MAX_VALUE);
+    }
+}
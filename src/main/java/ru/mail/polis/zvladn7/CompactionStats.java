@@ -0,0 +1,52 @@
+package ru.mail.polis.zvladn7;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the garbage collected by compactions.
+ */
+public final class CompactionStats {
+
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder tombstonesDropped = new LongAdder();
+    private final LongAdder versionsShadowed = new LongAdder();
+
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    /**
+     * Amount of tombstones which weren't written, because no older table might contain their keys.
+     */
+    public long getTombstonesDropped() {
+        return tombstonesDropped.sum();
+    }
+
+    /**
+     * Amount of cells which weren't written, because the newer cells of the same keys replace them.
+     */
+    public long getVersionsShadowed() {
+        return versionsShadowed.sum();
+    }
+
+    void recordTombstoneDropped() {
+        tombstonesDropped.increment();
+    }
+
+    void recordVersionShadowed() {
+        versionsShadowed.increment();
+    }
+
+    void recordCompaction(final CompactionStats compaction) {
+        compactions.increment();
+        tombstonesDropped.add(compaction.getTombstonesDropped());
+        versionsShadowed.add(compaction.getVersionsShadowed());
+    }
+
+    @Override
+    public String toString() {
+        return "CompactionStats{compactions=" + getCompactions()
+                + ", tombstonesDropped=" + getTombstonesDropped()
+                + ", versionsShadowed=" + getVersionsShadowed() + '}';
+    }
+}
@@ -0,0 +1,66 @@
+package ru.mail.polis.zvladn7;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of Bloom filter checks made by point lookups.
+ */
+public final class FilterStats {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private final LongAdder unfiltered = new LongAdder();
+
+    /**
+     * Amount of checks where the filter let the lookup into the table.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Amount of checks where the filter rejected the key, so the table was skipped.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Amount of hits for which the table didn't contain the key.
+     */
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    /**
+     * Amount of lookups into the tables without a Bloom filter, they are neither hits nor misses.
+     */
+    public long getUnfiltered() {
+        return unfiltered.sum();
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordFalsePositive() {
+        falsePositives.increment();
+    }
+
+    void recordUnfiltered() {
+        unfiltered.increment();
+    }
+
+    @Override
+    public String toString() {
+        return "FilterStats{hits=" + getHits()
+                + ", misses=" + getMisses()
+                + ", falsePositives=" + getFalsePositives()
+                + ", unfiltered=" + getUnfiltered() + '}';
+    }
+}
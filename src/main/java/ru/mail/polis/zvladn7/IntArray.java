@@ -0,0 +1,39 @@
+package ru.mail.polis.zvladn7;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of primitive ints, so offsets aren't boxed.
+ */
+final class IntArray {
+
+    private int[] elements;
+    private int size;
+
+    IntArray(final int initialCapacity) {
+        this.elements = new int[initialCapacity];
+    }
+
+    void add(final int element) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, Math.max(16, size * 2));
+        }
+        elements[size++] = element;
+    }
+
+    int get(final int index) {
+        return elements[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,185 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket which limits the disk I/O of flushes and compactions, so they don't starve the foreground reads.
+ * The bucket is refilled at the given rate and holds the tokens of {@link #BURST_NANOS} at most.
+ * A request may take more tokens than there are, then the next requests wait until the debt is repaid,
+ * so the big writes are limited as well as the small ones.
+ * Flushes have the high priority: they never wait, but their bytes are taken from the same bucket,
+ * so the compactions get what is left. Flushes must not wait, because the writers wait for them.
+ * Compactions also pause while there are foreground reads, but at most for {@link #MAX_PAUSE_NANOS} per request,
+ * so they always make progress.
+ * If the latency target is given, the rate is tuned by the foreground latency:
+ * it is halved when the average latency exceeds the target and increased by a step otherwise.
+ */
+final class IoRateLimiter {
+
+    static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    static final long MAX_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long PAUSE_STEP_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    static final long TUNE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    //the tuned rate is never lower than this part of the max one and grows by it
+    private static final int RATE_STEPS = 20;
+
+    private final long maxBytesPerSecond;
+    private final long latencyTargetNanos;
+    private final LongSupplier clock;
+    private final AtomicInteger foregroundOperations = new AtomicInteger();
+    private final LongAdder latencySumNanos = new LongAdder();
+    private final LongAdder latencySamples = new LongAdder();
+
+    //guards the bucket
+    private final Lock lock = new ReentrantLock();
+    private long bytesPerSecond;
+    private double availableBytes;
+    private long lastRefillNanos;
+    private long lastTuneNanos;
+
+    /**
+     * Creates the limiter.
+     * @param maxBytesPerSecond - rate of the background I/O.
+     * @param latencyTargetNanos - average latency of the foreground reads which the rate is tuned to,
+     *                           0 means the rate isn't tuned.
+     */
+    IoRateLimiter(final long maxBytesPerSecond, final long latencyTargetNanos) {
+        this(maxBytesPerSecond, latencyTargetNanos, System::nanoTime);
+    }
+
+    /**
+     * Creates the limiter which reads the time in nanoseconds from the given clock instead of the system one.
+     */
+    IoRateLimiter(final long maxBytesPerSecond, final long latencyTargetNanos, @NotNull final LongSupplier clock) {
+        if (maxBytesPerSecond <= 0 || latencyTargetNanos < 0) {
+            throw new IllegalArgumentException("Invalid rate limiter parameters");
+        }
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.latencyTargetNanos = latencyTargetNanos;
+        this.clock = clock;
+        this.bytesPerSecond = maxBytesPerSecond;
+        this.lastRefillNanos = clock.getAsLong();
+        this.lastTuneNanos = lastRefillNanos;
+        this.availableBytes = burstBytes();
+    }
+
+    /**
+     * Takes the tokens for the I/O of the given size, waits if the bucket is in debt.
+     * @param background - whether the I/O is made by a compaction, otherwise it is made by a flush and never waits.
+     */
+    void acquire(final long bytes, final boolean background) {
+        if (!background) {
+            take(bytes);
+            return;
+        }
+
+        long pausedNanos = 0;
+        while (foregroundOperations.get() > 0 && pausedNanos < MAX_PAUSE_NANOS) {
+            LockSupport.parkNanos(PAUSE_STEP_NANOS);
+            pausedNanos += PAUSE_STEP_NANOS;
+        }
+        long waitNanos = take(bytes);
+        while (waitNanos > 0) {
+            LockSupport.parkNanos(waitNanos);
+            waitNanos = debtNanos();
+        }
+    }
+
+    /**
+     * Marks the start of a foreground read, the compactions pause until it ends.
+     * @return the start time to pass to {@link #endForeground(long)}.
+     */
+    long beginForeground() {
+        foregroundOperations.incrementAndGet();
+        return clock.getAsLong();
+    }
+
+    void endForeground(final long startNanos) {
+        foregroundOperations.decrementAndGet();
+        if (latencyTargetNanos == 0) {
+            return;
+        }
+        latencySumNanos.add(clock.getAsLong() - startNanos);
+        latencySamples.increment();
+    }
+
+    long getBytesPerSecond() {
+        lock.lock();
+        try {
+            return bytesPerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the tokens and returns how long to wait until the bucket isn't in debt.
+     */
+    private long take(final long bytes) {
+        lock.lock();
+        try {
+            refill();
+            availableBytes -= bytes;
+            return debtNanosLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long debtNanos() {
+        lock.lock();
+        try {
+            refill();
+            return debtNanosLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long debtNanosLocked() {
+        return availableBytes >= 0 ? 0 : (long) (-availableBytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+    }
+
+    private void refill() {
+        final long now = clock.getAsLong();
+        availableBytes = Math.min(
+                burstBytes(),
+                availableBytes + (double) bytesPerSecond * (now - lastRefillNanos) / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+        if (latencyTargetNanos != 0 && now - lastTuneNanos >= TUNE_INTERVAL_NANOS) {
+            tune();
+            lastTuneNanos = now;
+        }
+    }
+
+    /**
+     * Halves the rate if the foreground reads are too slow and increases it by a step otherwise.
+     */
+    private void tune() {
+        final long step = Math.max(1, maxBytesPerSecond / RATE_STEPS);
+        final long samples = latencySamples.sumThenReset();
+        final long sumNanos = latencySumNanos.sumThenReset();
+        if (samples > 0 && sumNanos / samples > latencyTargetNanos) {
+            bytesPerSecond = Math.max(step, bytesPerSecond / 2);
+        } else {
+            bytesPerSecond = Math.min(maxBytesPerSecond, bytesPerSecond + step);
+        }
+    }
+
+    private double burstBytes() {
+        return (double) bytesPerSecond * BURST_NANOS / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return "IoRateLimiter{bytesPerSecond=" + getBytesPerSecond() + '}';
+    }
+}
@@ -0,0 +1,202 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Leveled compaction.
+ * Level 0 contains the flushed tables which may overlap. When there are enough of them,
+ * they all are merged with the overlapping tables of level 1.
+ * Deeper levels are sorted runs of the tables of about the same size which don't overlap.
+ * Every level may be some times bigger than the previous one. When a level exceeds its size,
+ * one of its tables is merged with the overlapping tables of the next level.
+ * So every compaction rewrites a few tables only, and most of the data is stored once in the last levels.
+ */
+public final class LeveledCompactionPolicy implements CompactionPolicy {
+
+    public static final int DEFAULT_LEVEL0_TABLES = 4;
+    public static final long DEFAULT_TABLE_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_LEVEL1_SIZE = 4 * DEFAULT_TABLE_SIZE;
+    public static final int DEFAULT_SIZE_MULTIPLIER = 10;
+    public static final int DEFAULT_LEVELS = 7;
+
+    private final int level0Tables;
+    private final long tableSize;
+    private final long level1Size;
+    private final int sizeMultiplier;
+    private final int levels;
+
+    public LeveledCompactionPolicy() {
+        this(DEFAULT_LEVEL0_TABLES, DEFAULT_TABLE_SIZE, DEFAULT_LEVEL1_SIZE, DEFAULT_SIZE_MULTIPLIER, DEFAULT_LEVELS);
+    }
+
+    /**
+     * Creates the policy.
+     * @param level0Tables - amount of level 0 tables which triggers their compaction.
+     * @param tableSize - size of the tables of the deeper levels.
+     * @param level1Size - max size of level 1.
+     * @param sizeMultiplier - how many times every next level is bigger than the previous one.
+     * @param levels - amount of levels including level 0, the last level is never compacted to the next one.
+     */
+    public LeveledCompactionPolicy(
+            final int level0Tables,
+            final long tableSize,
+            final long level1Size,
+            final int sizeMultiplier,
+            final int levels) {
+        if (level0Tables < 1 || tableSize <= 0 || level1Size <= 0 || sizeMultiplier < 2 || levels < 2) {
+            throw new IllegalArgumentException("Invalid leveled compaction parameters");
+        }
+        this.level0Tables = level0Tables;
+        this.tableSize = tableSize;
+        this.level1Size = level1Size;
+        this.sizeMultiplier = sizeMultiplier;
+        this.levels = levels;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pickCompaction(@NotNull final List<TableInfo> tables) {
+        final List<List<TableInfo>> byLevel = byLevel(tables);
+
+        final List<TableInfo> level0 = byLevel.get(0);
+        if (level0.size() >= level0Tables) {
+            final List<TableInfo> inputs = new ArrayList<>(level0);
+            addOverlapping(inputs, byLevel, 1);
+            return new Compaction(inputs, 1, tableSize);
+        }
+
+        int level = 0;
+        double maxScore = 1;
+        for (int i = 1; i < Math.min(byLevel.size(), levels - 1); ++i) {
+            final double score = (double) sizeOf(byLevel.get(i)) / maxSizeOf(i);
+            if (score > maxScore) {
+                maxScore = score;
+                level = i;
+            }
+        }
+        if (level == 0) {
+            return null;
+        }
+
+        final List<TableInfo> inputs = new ArrayList<>();
+        inputs.add(leastOverlapping(byLevel.get(level), byLevel, level + 1));
+        //the tables of the next level may widen the range, so the level is checked again until nothing is added.
+        //the level may contain the overlapping tables after a crash, the older ones can't be left above the result
+        int amountOfInputs = 0;
+        while (amountOfInputs != inputs.size()) {
+            amountOfInputs = inputs.size();
+            addOverlapping(inputs, byLevel, level);
+            addOverlapping(inputs, byLevel, level + 1);
+        }
+        return new Compaction(inputs, level + 1, tableSize);
+    }
+
+    @NotNull
+    @Override
+    public Compaction fullCompaction(@NotNull final List<TableInfo> tables) {
+        return new Compaction(tables, Math.max(1, tables.get(0).getLevel()), tableSize);
+    }
+
+    private long maxSizeOf(final int level) {
+        long size = level1Size;
+        for (int i = 1; i < level; ++i) {
+            size *= sizeMultiplier;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the table which overlaps the least amount of bytes of the next level relative to its own size,
+     * so the compaction of it rewrites the least data.
+     */
+    @NotNull
+    private static TableInfo leastOverlapping(
+            @NotNull final List<TableInfo> level,
+            @NotNull final List<List<TableInfo>> byLevel,
+            final int nextLevel) {
+        TableInfo best = level.get(0);
+        double bestRatio = Double.MAX_VALUE;
+        for (final TableInfo table : level) {
+            long overlappingSize = 0;
+            if (nextLevel < byLevel.size()) {
+                for (final TableInfo next : byLevel.get(nextLevel)) {
+                    if (next.overlaps(table)) {
+                        overlappingSize += next.getSizeInBytes();
+                    }
+                }
+            }
+            final double ratio = (double) overlappingSize / Math.max(1, table.getSizeInBytes());
+            if (ratio < bestRatio) {
+                bestRatio = ratio;
+                best = table;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Adds the tables of the level which overlap the key range of the inputs until there are no more such tables.
+     * The whole range is used rather than the ranges of the separate inputs,
+     * because the result of the compaction may contain any keys of the range.
+     */
+    private static void addOverlapping(
+            @NotNull final List<TableInfo> inputs,
+            @NotNull final List<List<TableInfo>> byLevel,
+            final int level) {
+        if (level >= byLevel.size()) {
+            return;
+        }
+        boolean added = true;
+        while (added) {
+            added = false;
+            ByteBuffer minKey = null;
+            ByteBuffer maxKey = null;
+            for (final TableInfo input : inputs) {
+                if (input.getAmountOfEntries() == 0) {
+                    continue;
+                }
+                if (minKey == null || input.getMinKey().compareTo(minKey) < 0) {
+                    minKey = input.getMinKey();
+                }
+                if (maxKey == null || input.getMaxKey().compareTo(maxKey) > 0) {
+                    maxKey = input.getMaxKey();
+                }
+            }
+            if (minKey == null) {
+                return;
+            }
+            for (final TableInfo table : byLevel.get(level)) {
+                if (!inputs.contains(table) && table.overlaps(minKey, maxKey)) {
+                    inputs.add(table);
+                    added = true;
+                }
+            }
+        }
+    }
+
+    private static long sizeOf(@NotNull final List<TableInfo> tables) {
+        long size = 0;
+        for (final TableInfo table : tables) {
+            size += table.getSizeInBytes();
+        }
+        return size;
+    }
+
+    @NotNull
+    private static List<List<TableInfo>> byLevel(@NotNull final List<TableInfo> tables) {
+        final List<List<TableInfo>> byLevel = new ArrayList<>();
+        byLevel.add(new ArrayList<>());
+        for (final TableInfo table : tables) {
+            while (byLevel.size() <= table.getLevel()) {
+                byLevel.add(new ArrayList<>());
+            }
+            byLevel.get(table.getLevel()).add(table);
+        }
+        return byLevel;
+    }
+}
@@ -0,0 +1,273 @@
+package ru.mail.polis.zvladn7;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * SSTables of the DAO arranged by levels.
+ * Level 0 contains the flushed tables which may overlap, the newer tables have the greater ranks.
+ * Deeper levels are sorted runs: their tables don't overlap and are sorted by keys,
+ * so a lookup probes at most one table of every such level.
+ * Every level contains the older data than the levels above it.
+ * A crash during a compaction may leave overlapping tables in a deeper level, then the greater rank wins.
+ * It isn't thread-safe: the levels of a published {@link TableSet} aren't changed, the changes are made to a copy.
+ */
+final class Levels {
+
+    private static final Comparator<SSTable> BY_MIN_KEY_AND_NEWEST
+            = Comparator.comparing(SSTable::getMinKey)
+            .thenComparing(SSTable::getRank, Comparator.reverseOrder());
+    private static final Comparator<SSTable> BY_NEWEST
+            = Comparator.comparing(SSTable::getRank, Comparator.reverseOrder());
+
+    private final NavigableMap<Integer, SSTable> level0 = new TreeMap<>();
+    //level i + 1 is at index i
+    private final List<SortedRun> deeperLevels = new ArrayList<>();
+
+    void add(@NotNull final SSTable table) {
+        if (table.getLevel() == 0) {
+            level0.put(table.getRank(), table);
+            return;
+        }
+        while (deeperLevels.size() < table.getLevel()) {
+            deeperLevels.add(new SortedRun());
+        }
+        deeperLevels.get(table.getLevel() - 1).add(table);
+    }
+
+    void remove(@NotNull final SSTable table) {
+        if (table.getLevel() == 0) {
+            level0.remove(table.getRank(), table);
+        } else if (table.getLevel() <= deeperLevels.size()) {
+            deeperLevels.get(table.getLevel() - 1).remove(table);
+        }
+    }
+
+    /**
+     * Returns the copy which may be changed without affecting this one.
+     */
+    @NotNull
+    Levels copy() {
+        final Levels copy = new Levels();
+        copy.level0.putAll(level0);
+        for (final SortedRun level : deeperLevels) {
+            copy.deeperLevels.add(level.copy());
+        }
+        return copy;
+    }
+
+    boolean isEmpty() {
+        return tables().isEmpty();
+    }
+
+    /**
+     * Returns all the tables from the oldest to the newest:
+     * from the deepest level to level 0, the tables of a deeper level are sorted by keys.
+     */
+    @NotNull
+    List<SSTable> tables() {
+        final List<SSTable> tables = new ArrayList<>();
+        for (int i = deeperLevels.size() - 1; i >= 0; --i) {
+            tables.addAll(deeperLevels.get(i).tables);
+        }
+        tables.addAll(level0.values());
+        return tables;
+    }
+
+    /**
+     * Returns the value from the newest table which contains a version of the key not newer than the sequence
+     * or null if there is no such table.
+     * The tables which Bloom filters don't contain the key aren't probed.
+     */
+    @Nullable
+    Value get(
+            @NotNull final ByteBuffer key,
+            final long keyHash,
+            final long sequence,
+            @NotNull final FilterStats filterStats) {
+        for (final SSTable table : level0.descendingMap().values()) {
+            final Value value = probe(table, key, keyHash, sequence, filterStats);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (final SortedRun level : deeperLevels) {
+            final Value value = level.get(key, keyHash, sequence, filterStats);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the iterators of the tables from the newest to the oldest ones.
+     * A sorted run is iterated by a single iterator which opens its tables one by one.
+     * The tables which key ranges lie outside the range aren't iterated.
+     * @param to - the end of the range, exclusive, null means the range isn't bounded.
+     * @param descending - whether the iterators go from the end of the range to its start.
+     */
+    void addIterators(
+            @NotNull final List<Iterator<Cell>> iters,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final boolean descending) {
+        for (final SSTable table : level0.descendingMap().values()) {
+            if (table.overlapsRange(from, to)) {
+                iters.add(table.iterator(from, to, descending));
+            }
+        }
+        for (final SortedRun level : deeperLevels) {
+            level.addIterators(iters, from, to, descending);
+        }
+    }
+
+
+    @Nullable
+    private static Value probe(
+            @NotNull final SSTable table,
+            @NotNull final ByteBuffer key,
+            final long keyHash,
+            final long sequence,
+            @NotNull final FilterStats filterStats) {
+        if (!table.hasFilter()) {
+            filterStats.recordUnfiltered();
+            return table.get(key, sequence);
+        }
+        if (!table.mightContain(keyHash)) {
+            filterStats.recordMiss();
+            return null;
+        }
+        filterStats.recordHit();
+        final Value value = table.get(key, sequence);
+        //the table which contains only the newer versions than the snapshot isn't a false positive
+        if (value == null && sequence == Long.MAX_VALUE) {
+            filterStats.recordFalsePositive();
+        }
+        return value;
+    }
+
+    private static final class SortedRun {
+        private final List<SSTable> tables = new ArrayList<>();
+        //tables of the level sorted from the newest to the oldest, it is used only when they overlap
+        private List<SSTable> newestFirst = new ArrayList<>();
+        private boolean disjoint = true;
+
+        @NotNull
+        SortedRun copy() {
+            final SortedRun copy = new SortedRun();
+            copy.tables.addAll(tables);
+            copy.newestFirst = new ArrayList<>(newestFirst);
+            copy.disjoint = disjoint;
+            return copy;
+        }
+
+        void add(@NotNull final SSTable table) {
+            tables.add(table);
+            update();
+        }
+
+        void remove(@NotNull final SSTable table) {
+            tables.remove(table);
+            update();
+        }
+
+        @Nullable
+        Value get(
+                @NotNull final ByteBuffer key,
+                final long keyHash,
+                final long sequence,
+                @NotNull final FilterStats filterStats) {
+            if (!disjoint) {
+                for (final SSTable table : newestFirst) {
+                    if (table.covers(key)) {
+                        final Value value = probe(table, key, keyHash, sequence, filterStats);
+                        if (value != null) {
+                            return value;
+                        }
+                    }
+                }
+                return null;
+            }
+
+            final int position = firstNotBefore(key);
+            if (position == tables.size() || !tables.get(position).covers(key)) {
+                return null;
+            }
+            return probe(tables.get(position), key, keyHash, sequence, filterStats);
+        }
+
+        void addIterators(
+                @NotNull final List<Iterator<Cell>> iters,
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to,
+                final boolean descending) {
+            if (!disjoint) {
+                for (final SSTable table : newestFirst) {
+                    if (table.overlapsRange(from, to)) {
+                        iters.add(table.iterator(from, to, descending));
+                    }
+                }
+                return;
+            }
+
+            final int position = firstNotBefore(from);
+            int end = position;
+            //the tables are sorted by keys, so the ones after the first table which starts past the bound are skipped
+            while (end < tables.size() && (to == null || tables.get(end).getMinKey().compareTo(to) < 0)) {
+                ++end;
+            }
+            if (position == end) {
+                return;
+            }
+            //the copy isn't affected by the compactions which replace the tables of the level
+            final List<SSTable> rest = new ArrayList<>(tables.subList(position, end));
+            if (descending) {
+                Collections.reverse(rest);
+            }
+            iters.add(Iterators.concat(Iterators.transform(
+                    rest.iterator(),
+                    table -> table.iterator(from, to, descending))));
+        }
+
+        /**
+         * Returns the position of the first table which max key is not less than the given one.
+         */
+        private int firstNotBefore(@NotNull final ByteBuffer key) {
+            int left = 0;
+            int right = tables.size();
+            while (left < right) {
+                final int mid = (left + right) >>> 1;
+                if (tables.get(mid).getMaxKey().compareTo(key) < 0) {
+                    left = mid + 1;
+                } else {
+                    right = mid;
+                }
+            }
+            return left;
+        }
+
+        private void update() {
+            tables.sort(BY_MIN_KEY_AND_NEWEST);
+            disjoint = true;
+            for (int i = 1; i < tables.size(); ++i) {
+                if (tables.get(i - 1).getMaxKey().compareTo(tables.get(i).getMinKey()) >= 0) {
+                    disjoint = false;
+                    break;
+                }
+            }
+            newestFirst = new ArrayList<>(tables);
+            newestFirst.sort(BY_NEWEST);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive key locks of the transactions.
+ * The lock table is split into stripes by the hashes of the keys, every stripe has its own mutex,
+ * so the transactions which lock different keys rarely contend.
+ * A transaction which finds the key locked waits for its release on the condition of the stripe
+ * at most for the timeout, 0 means it doesn't wait at all.
+ * The locks are released by their owner, which remembers the keys it holds, so the table isn't scanned.
+ */
+final class LockManager {
+
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong nextOwner = new AtomicLong();
+    private final long timeoutNanos;
+
+    /**
+     * Creates the lock table.
+     * @param timeoutMillis - how long a transaction waits for a locked key, 0 means it fails at once.
+     */
+    LockManager(final long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Lock timeout must not be negative: " + timeoutMillis);
+        }
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (int i = 0; i < STRIPES; ++i) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Returns the id of the new owner of the locks, the ids are never reused.
+     */
+    long newOwner() {
+        return nextOwner.getAndIncrement();
+    }
+
+    /**
+     * Locks the key unless another owner holds it longer than the timeout.
+     * @return whether the key is locked by the owner, it may have been locked by it before.
+     */
+    boolean lock(@NotNull final ByteBuffer key, final long owner) {
+        final Stripe stripe = stripeFor(key);
+        stripe.mutex.lock();
+        try {
+            long remainingNanos = timeoutNanos;
+            while (true) {
+                final Long current = stripe.owners.get(key);
+                if (current == null) {
+                    stripe.owners.put(key.duplicate(), owner);
+                    return true;
+                }
+                if (current == owner) {
+                    return true;
+                }
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = stripe.released.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            stripe.mutex.unlock();
+        }
+    }
+
+    /**
+     * Releases the keys locked by the owner and wakes up the transactions waiting for them.
+     */
+    void unlock(@NotNull final Collection<ByteBuffer> keys, final long owner) {
+        for (final ByteBuffer key : keys) {
+            final Stripe stripe = stripeFor(key);
+            stripe.mutex.lock();
+            try {
+                if (stripe.owners.remove(key, owner)) {
+                    stripe.released.signalAll();
+                }
+            } finally {
+                stripe.mutex.unlock();
+            }
+        }
+    }
+
+    @NotNull
+    private Stripe stripeFor(@NotNull final ByteBuffer key) {
+        final int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static final class Stripe {
+        private final ReentrantLock mutex = new ReentrantLock();
+        private final Condition released = mutex.newCondition();
+        //owners of the locked keys of the stripe
+        private final Map<ByteBuffer, Long> owners = new HashMap<>();
+    }
+}
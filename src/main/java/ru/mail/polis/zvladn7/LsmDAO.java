@@ -9,4 +9,11 @@ public interface LsmDAO extends DAO {
      */
     TransactionalDAO beginTransaction();
 
+    /**
+     * Begin new optimistic transaction.
+     * It doesn't lock the keys: it reads the snapshot taken at its first operation, buffers the writes
+     * and applies them at commit only if none of the keys it has read has been changed since the snapshot.
+     */
+    TransactionalDAO beginOptimisticTransaction();
+
 }
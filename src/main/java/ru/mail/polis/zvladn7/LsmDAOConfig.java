@@ -0,0 +1,261 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tuning parameters of {@link LsmDAOImpl}.
+ */
+public final class LsmDAOConfig {
+
+    public static final int DEFAULT_BLOOM_FILTER_BITS_PER_KEY = 10;
+    public static final long DEFAULT_BLOCK_CACHE_CAPACITY = 8 * 1024 * 1024;
+    public static final int DEFAULT_MAX_IMMUTABLE_MEMTABLES = 2;
+    public static final long DEFAULT_WAL_SYNC_INTERVAL_MILLIS = 100;
+
+    private final int bloomFilterBitsPerKey;
+    private final long blockCacheCapacity;
+    private final boolean blockCacheOffHeap;
+    private final int maxImmutableMemtables;
+    private final WalSyncMode walSyncMode;
+    private final long walSyncIntervalMillis;
+    private final CompactionPolicy compactionPolicy;
+    private final int maxSubcompactions;
+    private final long backgroundBytesPerSecond;
+    private final long foregroundLatencyTargetMicros;
+    private final long lockTimeoutMillis;
+
+    private LsmDAOConfig(@NotNull final Builder builder) {
+        this.bloomFilterBitsPerKey = builder.bloomFilterBitsPerKey;
+        this.blockCacheCapacity = builder.blockCacheCapacity;
+        this.blockCacheOffHeap = builder.blockCacheOffHeap;
+        this.maxImmutableMemtables = builder.maxImmutableMemtables;
+        this.walSyncMode = builder.walSyncMode;
+        this.walSyncIntervalMillis = builder.walSyncIntervalMillis;
+        this.compactionPolicy = builder.compactionPolicy;
+        this.maxSubcompactions = builder.maxSubcompactions;
+        this.backgroundBytesPerSecond = builder.backgroundBytesPerSecond;
+        this.foregroundLatencyTargetMicros = builder.foregroundLatencyTargetMicros;
+        this.lockTimeoutMillis = builder.lockTimeoutMillis;
+    }
+
+    @NotNull
+    public static LsmDAOConfig defaults() {
+        return builder().build();
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int getBloomFilterBitsPerKey() {
+        return bloomFilterBitsPerKey;
+    }
+
+    public long getBlockCacheCapacity() {
+        return blockCacheCapacity;
+    }
+
+    public boolean isBlockCacheOffHeap() {
+        return blockCacheOffHeap;
+    }
+
+    public int getMaxImmutableMemtables() {
+        return maxImmutableMemtables;
+    }
+
+    @NotNull
+    public WalSyncMode getWalSyncMode() {
+        return walSyncMode;
+    }
+
+    public long getWalSyncIntervalMillis() {
+        return walSyncIntervalMillis;
+    }
+
+    @NotNull
+    public CompactionPolicy getCompactionPolicy() {
+        return compactionPolicy;
+    }
+
+    public int getMaxSubcompactions() {
+        return maxSubcompactions;
+    }
+
+    public long getBackgroundBytesPerSecond() {
+        return backgroundBytesPerSecond;
+    }
+
+    public long getForegroundLatencyTargetMicros() {
+        return foregroundLatencyTargetMicros;
+    }
+
+    public long getLockTimeoutMillis() {
+        return lockTimeoutMillis;
+    }
+
+    public static final class Builder {
+
+        private int bloomFilterBitsPerKey = DEFAULT_BLOOM_FILTER_BITS_PER_KEY;
+        private long blockCacheCapacity = DEFAULT_BLOCK_CACHE_CAPACITY;
+        private boolean blockCacheOffHeap = true;
+        private int maxImmutableMemtables = DEFAULT_MAX_IMMUTABLE_MEMTABLES;
+        private WalSyncMode walSyncMode = WalSyncMode.PERIODIC;
+        private long walSyncIntervalMillis = DEFAULT_WAL_SYNC_INTERVAL_MILLIS;
+        private CompactionPolicy compactionPolicy = new LeveledCompactionPolicy();
+        private int maxSubcompactions = Runtime.getRuntime().availableProcessors();
+        private long backgroundBytesPerSecond;
+        private long foregroundLatencyTargetMicros;
+        private long lockTimeoutMillis;
+
+        private Builder() {
+            //use LsmDAOConfig.builder()
+        }
+
+        /**
+         * Sets the size of Bloom filters of the new SSTables.
+         * @param bitsPerKey - amount of bits per key, 0 disables the filters.
+         */
+        @NotNull
+        public Builder bloomFilterBitsPerKey(final int bitsPerKey) {
+            if (bitsPerKey < 0) {
+                throw new IllegalArgumentException("Bits per key must not be negative: " + bitsPerKey);
+            }
+            this.bloomFilterBitsPerKey = bitsPerKey;
+            return this;
+        }
+
+        /**
+         * Sets the size of the block cache shared by all the SSTables.
+         * @param capacity - max amount of bytes of the cached blocks, 0 disables the cache.
+         */
+        @NotNull
+        public Builder blockCacheCapacity(final long capacity) {
+            if (capacity < 0) {
+                throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+            }
+            this.blockCacheCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Sets whether the cached blocks are allocated out of the Java heap, so they don't count against -Xmx.
+         */
+        @NotNull
+        public Builder blockCacheOffHeap(final boolean offHeap) {
+            this.blockCacheOffHeap = offHeap;
+            return this;
+        }
+
+        /**
+         * Sets how many full memory tables may wait for the background flush.
+         * Writers are blocked when there are so many of them until one is flushed.
+         * @param maxMemtables - max amount of the memory tables waiting for the flush, at least 1.
+         */
+        @NotNull
+        public Builder maxImmutableMemtables(final int maxMemtables) {
+            if (maxMemtables < 1) {
+                throw new IllegalArgumentException("Amount of immutable memtables must be positive: " + maxMemtables);
+            }
+            this.maxImmutableMemtables = maxMemtables;
+            return this;
+        }
+
+        /**
+         * Sets when the writes are forced to the disk, see {@link WalSyncMode}.
+         */
+        @NotNull
+        public Builder walSyncMode(@NotNull final WalSyncMode mode) {
+            this.walSyncMode = mode;
+            return this;
+        }
+
+        /**
+         * Sets how often the write-ahead log is forced in the {@link WalSyncMode#PERIODIC} mode.
+         * @param intervalMillis - interval between the syncs in milliseconds.
+         */
+        @NotNull
+        public Builder walSyncIntervalMillis(final long intervalMillis) {
+            if (intervalMillis <= 0) {
+                throw new IllegalArgumentException("Sync interval must be positive: " + intervalMillis);
+            }
+            this.walSyncIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        /**
+         * Sets the policy of the background compaction.
+         * {@link LeveledCompactionPolicy} is used by default, {@link SizeTieredCompactionPolicy} suits
+         * the write-heavy workloads better.
+         * A policy which never picks any table disables the background compaction.
+         */
+        @NotNull
+        public Builder compactionPolicy(@NotNull final CompactionPolicy policy) {
+            this.compactionPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Sets how many threads merge the key ranges of a compaction to a deeper level in parallel.
+         * A compaction is split into at most one range per output table, so the small ones run in one thread.
+         * @param maxSubcompactions - max amount of the ranges, 1 disables the split.
+         */
+        @NotNull
+        public Builder maxSubcompactions(final int maxSubcompactions) {
+            if (maxSubcompactions < 1) {
+                throw new IllegalArgumentException("Amount of subcompactions must be positive: " + maxSubcompactions);
+            }
+            this.maxSubcompactions = maxSubcompactions;
+            return this;
+        }
+
+        /**
+         * Limits the disk I/O of flushes and compactions.
+         * Flushes are never delayed, but they take their share of the rate, and compactions get the rest.
+         * Compactions also yield to the foreground reads.
+         * @param bytesPerSecond - max rate of the background I/O, 0 means it isn't limited.
+         */
+        @NotNull
+        public Builder backgroundBytesPerSecond(final long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Rate must not be negative: " + bytesPerSecond);
+            }
+            this.backgroundBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Tunes the rate of the background I/O by the latency of the foreground reads:
+         * it is halved when the reads are slower than the target and grows back up to the limit otherwise.
+         * It works only when {@link #backgroundBytesPerSecond(long)} is set.
+         * @param latencyTargetMicros - average latency of the reads in microseconds, 0 disables the tuning.
+         */
+        @NotNull
+        public Builder foregroundLatencyTargetMicros(final long latencyTargetMicros) {
+            if (latencyTargetMicros < 0) {
+                throw new IllegalArgumentException("Latency target must not be negative: " + latencyTargetMicros);
+            }
+            this.foregroundLatencyTargetMicros = latencyTargetMicros;
+            return this;
+        }
+
+        /**
+         * Sets how long a transaction waits for the key locked by another one before it is rolled back.
+         * The waiting transactions are woken up when the key is released, so the short conflicts don't abort them.
+         * @param timeoutMillis - max wait for a lock in milliseconds, 0 means the transaction is rolled back at once.
+         */
+        @NotNull
+        public Builder lockTimeoutMillis(final long timeoutMillis) {
+            if (timeoutMillis < 0) {
+                throw new IllegalArgumentException("Lock timeout must not be negative: " + timeoutMillis);
+            }
+            this.lockTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        @NotNull
+        public LsmDAOConfig build() {
+            return new LsmDAOConfig(this);
+        }
+    }
+}
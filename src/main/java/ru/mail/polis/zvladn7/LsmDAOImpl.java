@@ -1,26 +1,59 @@
 package ru.mail.polis.zvladn7;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import ru.mail.polis.Iters;
-import ru.mail.polis.Record;
+import ru.mail.polis.WriteBatch;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 public class LsmDAOImpl implements LsmDAO {
@@ -29,18 +62,71 @@ public class LsmDAOImpl implements LsmDAO {
 
     private static final String SSTABLE_FILE_POSTFIX = ".dat";
     private static final String SSTABLE_TEMPORARY_FILE_POSTFIX = ".tmp";
+    //tables of the deeper levels are named generation_level.dat, level 0 tables are named generation.dat
+    private static final char LEVEL_SEPARATOR = '_';
+
+    //amount of the generations reserved in the manifest at once
+    private static final int GENERATIONS_PER_RESERVATION = 64;
+    //amount of the read bytes passed to the rate limiter at once
+    private static final int RATE_LIMITER_CHUNK_SIZE = 64 * 1024;
 
     private static ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
 
     @NonNull
     private final File storage;
     private final int amountOfBytesToFlush;
+    private final LsmDAOConfig config;
+    private final FilterStats filterStats = new FilterStats();
+    @Nullable
+    private final BlockCache blockCache;
+    private final WriteStats writeStats = new WriteStats();
+    private final CompactionStats compactionStats = new CompactionStats();
+    //limits the I/O of flushes and compactions, it is null if the I/O isn't limited
+    @Nullable
+    private final IoRateLimiter rateLimiter;
+    private final SSTableWriter writer;
+    //writer of every subcompaction, they are used by the compaction thread and its subcompactions only
+    private final List<SSTableWriter> compactionWriters = new ArrayList<>();
+    private final WriteAheadLog wal;
+    //the live tables, the tables are added to it before they are installed and removed before they are deleted
+    private final Manifest manifest;
+    //ids of the tables in the block cache, a table which replaces another one of the same generation gets a new id
+    private final AtomicLong nextTableId = new AtomicLong();
 
-    private MemoryTable memtable;
-    private final NavigableMap<Integer, Table> ssTables;
-    Map<ByteBuffer, Long> lockTable = new HashMap<>();
+    //full memory tables waiting for the background flush by their generations, guarded by the write lock
+    private final NavigableMap<Integer, MemoryTable> immutableMemtables = new TreeMap<>();
+    //the current tables, readers take it without the lock
+    private volatile TableSet tableSet;
+    //writers share the memory table, while freezes, flushes and compactions publish the new table sets exclusively
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    //signalled under the write lock when an immutable memory table is flushed or fails to
+    private final Condition memtableFlushed = lock.writeLock().newCondition();
+    //odd while a group of batches is put to the memory table, so a point lookup which may see a part of it retries
+    private final AtomicLong groupVersion = new AtomicLong();
+    private final ExecutorService flusher;
+    //runs one compaction at a time, so the compacted tables are removed by it only
+    private final ExecutorService compactor;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    //merges the key ranges of a compaction in parallel, it is null if the compactions aren't split
+    @Nullable
+    private final ForkJoinPool subcompactor;
+    @Nullable
+    private IOException flushError;
+    //key locks of the transactions
+    private final LockManager lockManager;
 
-    private int generation;
+    private final AtomicInteger generation = new AtomicInteger();
+    //the generations below it are reserved in the manifest, so the files of them may be created
+    private int reservedGeneration;
+    private final Object reservationLock = new Object();
+    //sequence of the last write, the sequences are allocated under the lock, so a snapshot sees whole batches
+    //it starts at the current time, so the snapshots see the versions stamped by the time in the legacy tables
+    private final AtomicLong lastSequence = new AtomicLong(System.currentTimeMillis());
+    //amounts of the live snapshots by their sequences, they are registered under the write lock
+    private final ConcurrentNavigableMap<Long, Integer> snapshots = new ConcurrentSkipListMap<>();
+    //the batches waiting for the group commit, the writer which takes the commit lock applies all of them
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Lock commitLock = new ReentrantLock();
 
     /**
      * LSM DAO implementation.
@@ -48,133 +134,1336 @@ public class LsmDAOImpl implements LsmDAO {
      * @param amountOfBytesToFlush - amount of bytes that need to flush current memory table.
      */
     public LsmDAOImpl(@NotNull final File storage, final int amountOfBytesToFlush) throws IOException {
+        this(storage, amountOfBytesToFlush, LsmDAOConfig.defaults());
+    }
+
+    /**
+     * LSM DAO implementation.
+     * @param storage - the directory where SSTables stored.
+     * @param amountOfBytesToFlush - amount of bytes that need to flush current memory table.
+     * @param config - tuning parameters.
+     */
+    public LsmDAOImpl(
+            @NotNull final File storage,
+            final int amountOfBytesToFlush,
+            @NotNull final LsmDAOConfig config) throws IOException {
         this.storage = storage;
         this.amountOfBytesToFlush = amountOfBytesToFlush;
-        this.memtable = new MemoryTable();
-        this.ssTables = new TreeMap<>();
+        this.config = config;
+        this.blockCache = config.getBlockCacheCapacity() == 0
+                ? null
+                : new BlockCache(config.getBlockCacheCapacity(), config.isBlockCacheOffHeap());
+        this.rateLimiter = config.getBackgroundBytesPerSecond() == 0
+                ? null
+                : new IoRateLimiter(config.getBackgroundBytesPerSecond(),
+                        TimeUnit.MICROSECONDS.toNanos(config.getForegroundLatencyTargetMicros()));
+        this.lockManager = new LockManager(config.getLockTimeoutMillis());
+        this.writer = new SSTableWriter(config.getBloomFilterBitsPerKey(), writeStats, rateLimiter, false);
+        this.compactionWriters.add(new SSTableWriter(config.getBloomFilterBitsPerKey(), writeStats, rateLimiter,
+                true));
+        this.flusher = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("lsm-flusher-%d")
+                        .setDaemon(true)
+                        .build());
+        this.compactor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("lsm-compactor-%d")
+                        .setDaemon(true)
+                        .build());
+        this.subcompactor = config.getMaxSubcompactions() == 1 ? null : new ForkJoinPool(config.getMaxSubcompactions());
+        final Levels levels = new Levels();
+        final boolean hasManifest = Manifest.exists(storage);
+        if (hasManifest) {
+            this.manifest = Manifest.open(storage);
+            for (final Manifest.TableEntry table : manifest.tables()) {
+                final File file = new File(storage, fileName(table.getGeneration(), table.getLevel()));
+                levels.add(new SSTable(file, table.getGeneration(), table.getLevel(), table.getRank(),
+                        nextTableId.getAndIncrement(), blockCache, table.getMinKey(), table.getMaxKey()));
+                generation.accumulateAndGet(table.getGeneration() + 1, Math::max);
+            }
+            //the files of all the generations up to it have been reserved, including the garbage
+            generation.accumulateAndGet(manifest.getNextGeneration(), Math::max);
+            lastSequence.accumulateAndGet(manifest.getLastSequence(), Math::max);
+        } else {
+            loadTables(levels);
+            final List<Manifest.TableEntry> tables = new ArrayList<>();
+            for (final SSTable table : levels.tables()) {
+                tables.add(Manifest.TableEntry.of(table));
+            }
+            //the tables written before the manifest don't have the sequences, so the clock is ahead of them
+            this.manifest = Manifest.create(storage, tables, generation.get(), lastSequence.get());
+        }
+        this.reservedGeneration = generation.get();
+        this.tableSet = new TableSet(new MemoryTable(), Collections.emptyList(), levels);
+        if (hasManifest) {
+            final int firstNewGeneration = generation.get();
+            //the files of the interrupted flushes and compactions don't prevent the DAO from starting
+            compactor.execute(() -> deleteGarbage(firstNewGeneration));
+        }
+
+        this.wal = new WriteAheadLog(storage, config.getWalSyncMode(), config.getWalSyncIntervalMillis());
+        wal.replay(cell -> {
+            tableSet.getMemtable().put(cell.getKey(), cell.getValue());
+            lastSequence.accumulateAndGet(cell.getValue().getSequence(), Math::max);
+        });
+        if (tableSet.getMemtable().getAmountOfBytes() > amountOfBytesToFlush) {
+            flushIfFull();
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Allocates the generation of a new table file.
+     * The generations are reserved in the manifest by batches before their files are created,
+     * so on startup the manifest alone tells which generations the garbage files may have.
+     */
+    private int newGeneration() throws IOException {
+        synchronized (reservationLock) {
+            final int newGeneration = generation.getAndIncrement();
+            if (newGeneration >= reservedGeneration) {
+                reservedGeneration = newGeneration + GENERATIONS_PER_RESERVATION;
+                manifest.commit(Collections.emptyList(), Collections.emptyList(), reservedGeneration,
+                        lastSequence.get());
+            }
+            return newGeneration;
+        }
+    }
+
+    /**
+     * Loads the tables found in the storage which doesn't have the manifest yet.
+     */
+    private void loadTables(@NotNull final Levels levels) throws IOException {
         try (Stream<Path> files = Files.list(storage.toPath())) {
-            files.filter(file -> !file.toFile().isDirectory() && file.toString().endsWith(SSTABLE_FILE_POSTFIX))
+            files.filter(file -> !file.toFile().isDirectory())
                     .forEach(file -> {
                         final String fileName = file.getFileName().toString();
                         try {
-                            final String stringGen = fileName.substring(0, fileName.indexOf(SSTABLE_FILE_POSTFIX));
-                            final int gen = Integer.parseInt(stringGen);
-                            generation = Math.max(gen, generation);
-                            ssTables.put(gen, new SSTable(file.toFile()));
+                            if (fileName.endsWith(SSTABLE_FILE_POSTFIX)) {
+                                loadTable(file.toFile(), levels);
+                            } else if (fileName.endsWith(SSTABLE_TEMPORARY_FILE_POSTFIX)) {
+                                //the table was being written when the DAO crashed
+                                Files.delete(file);
+                            }
                         } catch (IOException e) {
-                            e.printStackTrace();
                             logger.error("Something went wrong while the SSTable was created!", e);
                         } catch (NumberFormatException e) {
                             logger.info("Unexpected name of SSTable file: " + fileName, e);
                         }
                     });
-            ++generation;
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Deletes the table files which are not in the manifest, they are left by the crashed flushes and compactions.
+     * Only the files of the generations before the given one are deleted, the newer ones may be being written.
+     * Must be called by the compaction thread, so the set of the live tables doesn't change meanwhile.
+     */
+    private void deleteGarbage(final int firstNewGeneration) {
+        final Set<String> liveFiles = new HashSet<>();
+        for (final SSTable table : tableSet.getSsTables().tables()) {
+            liveFiles.add(table.getFile().getName());
+        }
+
+        try (Stream<Path> files = Files.list(storage.toPath())) {
+            files.forEach(file -> {
+                final String fileName = file.getFileName().toString();
+                if (liveFiles.contains(fileName) || generationOf(fileName) >= firstNewGeneration) {
+                    return;
+                }
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    logger.warn("Unable to delete file: " + fileName, e);
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Unable to list the storage: " + storage, e);
+        }
+    }
+
+    /**
+     * Returns the generation of the table file or {@link Integer#MAX_VALUE} if the file isn't a table.
+     */
+    private static int generationOf(@NotNull final String fileName) {
+        final int end;
+        if (fileName.endsWith(SSTABLE_FILE_POSTFIX)) {
+            end = fileName.indexOf(SSTABLE_FILE_POSTFIX);
+        } else if (fileName.endsWith(SSTABLE_TEMPORARY_FILE_POSTFIX)) {
+            end = fileName.indexOf(SSTABLE_TEMPORARY_FILE_POSTFIX);
+        } else {
+            return Integer.MAX_VALUE;
+        }
+        final String name = fileName.substring(0, end);
+        final int separator = name.indexOf(LEVEL_SEPARATOR);
+        try {
+            if (separator != -1) {
+                Integer.parseInt(name.substring(separator + 1));
+            }
+            return Integer.parseInt(separator == -1 ? name : name.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private void loadTable(@NotNull final File file, @NotNull final Levels levels) throws IOException {
+        final String fileName = file.getName();
+        final String name = fileName.substring(0, fileName.indexOf(SSTABLE_FILE_POSTFIX));
+        final int separator = name.indexOf(LEVEL_SEPARATOR);
+        final int gen = Integer.parseInt(separator == -1 ? name : name.substring(0, separator));
+        final int level = separator == -1 ? 0 : Integer.parseInt(name.substring(separator + 1));
+        generation.accumulateAndGet(gen, Math::max);
+        levels.add(openTable(file, gen, level));
+    }
+
+    @NotNull
+    @Override
+    public RecordIterator iterator(@NotNull final ByteBuffer from) {
+        return records(from, null, false, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Passes the bound down to the table iterators, so they stop at it instead of decoding the cells after it,
+     * and the tables which key ranges lie outside the range aren't iterated at all.
+     */
+    @NotNull
+    @Override
+    public RecordIterator range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) >= 0) {
+            return RecordIterator.empty();
         }
+        return records(from, to, false, null, Long.MAX_VALUE);
+    }
 
+    /**
+     * Walks every table backwards from the bound and merges them in reverse order,
+     * so it costs the same as {@link #range(ByteBuffer, ByteBuffer)} does.
+     */
+    @NotNull
+    @Override
+    public RecordIterator descendingRange(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) >= 0) {
+            return RecordIterator.empty();
+        }
+        return records(from, to, true, null, Long.MAX_VALUE);
     }
 
+    /**
+     * Merges the tables of the current set, which is released when the iterator is exhausted, closed or unreachable,
+     * so the replaced tables stay open while they are iterated.
+     * @param newest - the table which is newer than the tables of the DAO, e.g. the one of a transaction.
+     * @param sequence - the versions newer than it are skipped, e.g. the ones written after a snapshot.
+     */
+    @NotNull
+    RecordIterator records(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final boolean descending,
+            @Nullable final Table newest,
+            final long sequence) {
+        final TableSet tables = acquireTables();
+        try {
+            final List<Iterator<Cell>> iters = new ArrayList<>();
+            if (newest != null) {
+                iters.add(newest.iterator(from, to, descending));
+            }
+            tables.addIterators(iters, from, to, descending);
+            return tables.pin(MergingIterator.records(iters, descending, sequence));
+        } catch (RuntimeException e) {
+            tables.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a reference to the current table set, the caller must release it.
+     */
+    @NotNull
+    private TableSet acquireTables() {
+        while (true) {
+            final TableSet tables = tableSet;
+            if (tables.retain()) {
+                return tables;
+            }
+            //the released set is either replaced by now or the DAO is closed
+            if (tables == tableSet) {
+                throw new IllegalStateException("The DAO is closed");
+            }
+        }
+    }
+
+    /**
+     * Replaces the current table set, the replaced one stays alive while it is read.
+     * Must be called under the write lock.
+     */
+    private void publish(@NotNull final TableSet next) {
+        final TableSet previous = tableSet;
+        tableSet = next;
+        previous.release();
+    }
+
+    /**
+     * Point lookup which doesn't merge the tables.
+     * It probes the memory tables and then SSTables from the newest to the oldest one
+     * and stops at the first table which contains the key, even if the value is a tombstone.
+     * SSTables which Bloom filters don't contain the key aren't probed,
+     * and at most one table of every level below level 0 is probed.
+     * The lookup pins the current table set instead of taking the lock, so it doesn't delay the writers.
+     */
     @NotNull
     @Override
-    public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
-        final Iterator<Cell> freshElements = freshCellIterator(from);
-        final Iterator<Cell> aliveElements = Iterators.filter(freshElements, el -> !el.getValue().isTombstone());
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+        return get(key, Long.MAX_VALUE);
+    }
+
+    /**
+     * Point lookup which skips the versions newer than the sequence, e.g. the ones written after a snapshot.
+     */
+    @NotNull
+    ByteBuffer get(@NotNull final ByteBuffer key, final long sequence) throws NoSuchElementException {
+        //the compactions yield to the reads
+        final long startNanos = rateLimiter == null ? 0 : rateLimiter.beginForeground();
+        try {
+            final TableSet tables = acquireTables();
+            try {
+                final Value memValue = getFromMemtablesAtomically(tables, key, sequence);
+                final Value value = memValue == null
+                        ? tables.getSsTables().get(key, BloomFilter.hash(key), sequence, filterStats)
+                        : memValue;
+                if (value == null || value.isTombstone()) {
+                    throw new NoSuchElementException("Not found");
+                }
+                return value.getData();
+            } finally {
+                tables.release();
+            }
+        } finally {
+            if (rateLimiter != null) {
+                rateLimiter.endForeground(startNanos);
+            }
+        }
+    }
+
+    /**
+     * Probes the memory tables as {@link #getFromMemtables(TableSet, ByteBuffer, long)} does,
+     * but doesn't return the version of a batch which group is being applied.
+     * The probe is repeated under the read lock if a group has been applied during it,
+     * so the lookups see either all the updates of a batch or none of them.
+     */
+    @Nullable
+    private Value getFromMemtablesAtomically(
+            @NotNull final TableSet tables,
+            @NotNull final ByteBuffer key,
+            final long sequence) {
+        final long version = groupVersion.get();
+        if ((version & 1) == 0) {
+            final Value value = getFromMemtables(tables, key, sequence);
+            if (groupVersion.get() == version) {
+                return value;
+            }
+        }
+        //the lock waits for the group to be applied
+        lock.readLock().lock();
+        try {
+            return getFromMemtables(tables, key, sequence);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-        return Iterators.transform(aliveElements, el -> Record.of(el.getKey(), el.getValue().getData()));
+    @Nullable
+    private static Value getFromMemtables(
+            @NotNull final TableSet tables,
+            @NotNull final ByteBuffer key,
+            final long sequence) {
+        final Value memValue = tables.getMemtable().get(key, sequence);
+        if (memValue != null) {
+            return memValue;
+        }
+        for (final MemoryTable immutableMemtable : tables.getImmutableMemtables()) {
+            final Value value = immutableMemtable.get(key, sequence);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memtable.upsert(key, value);
-        if (memtable.getAmountOfBytes() > amountOfBytesToFlush) {
-            flush();
+        final boolean needFlush;
+        final long logPosition;
+        lock.readLock().lock();
+        try {
+            logPosition = put(key, new Value(allocateSequences(1), value.duplicate()));
+            needFlush = tableSet.getMemtable().getAmountOfBytes() > amountOfBytesToFlush;
+        } finally {
+            lock.readLock().unlock();
+        }
+        wal.sync(logPosition);
+        if (needFlush) {
+            flushIfFull();
         }
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memtable.remove(key);
-        if (memtable.getAmountOfBytes() > amountOfBytesToFlush) {
-            flush();
+        final boolean needFlush;
+        final long logPosition;
+        lock.readLock().lock();
+        try {
+            logPosition = put(key, Value.newTombstoneValue(allocateSequences(1)));
+            needFlush = tableSet.getMemtable().getAmountOfBytes() > amountOfBytesToFlush;
+        } finally {
+            lock.readLock().unlock();
+        }
+        wal.sync(logPosition);
+        if (needFlush) {
+            flushIfFull();
+        }
+    }
+
+    /**
+     * Applies the batch with a single log record under the exclusive lock,
+     * so point lookups and snapshots see either all the updates of the batch or none of them.
+     * The updates get the consecutive sequences, so the last update of a key wins.
+     * The whole batch goes to one memory table, the flush threshold is checked once after it.
+     * Iterators over the memory table are weakly consistent, so a concurrent iterator may see a part of the batch.
+     * The concurrent batches are committed as a group: the writer which takes the commit lock applies the batches
+     * of all the waiting writers with a single log record, so they share a single sync of the log.
+     * The log is synced after the exclusive lock is released, so the sync doesn't block the reads and the writes,
+     * but they may see the batch before it is durable. The writers return after it is.
+     */
+    @Override
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        writeIfUnchanged(batch, Collections.emptyList(), Long.MAX_VALUE);
+    }
+
+    /**
+     * Applies the batch as {@link #write(WriteBatch)} does unless one of the keys has a version newer than the given
+     * sequence, e.g. one of the keys read by an optimistic transaction has been changed since its snapshot.
+     * The keys are checked under the same exclusive lock, so no write gets between the check and the batch.
+     * @return whether the batch has been applied.
+     */
+    boolean writeIfUnchanged(
+            @NotNull final WriteBatch batch,
+            @NotNull final Collection<ByteBuffer> keys,
+            final long readSequence) throws IOException {
+        if (batch.isEmpty() && keys.isEmpty()) {
+            return true;
+        }
+        final PendingWrite write = new PendingWrite(batch, keys, readSequence);
+        pendingWrites.add(write);
+        final boolean needFlush;
+        commitLock.lock();
+        try {
+            //the write may have been committed by the group of another writer while this one waited for the lock
+            needFlush = !write.isDone() && commitGroup();
+        } finally {
+            commitLock.unlock();
+        }
+        if (needFlush) {
+            flushIfFull();
+        }
+        return write.getResult();
+    }
+
+    /**
+     * Applies the waiting batches which keys are unchanged with a single log record and syncs it.
+     * A batch is checked after the batches before it, so the keys written by them are changed as well.
+     * The results are set after the sync, so a writer never returns before its batch is durable.
+     * If the sync fails, the batches stay applied, but their writers get the error.
+     * Must be called under the commit lock.
+     * @return whether the memory table is full.
+     */
+    private boolean commitGroup() {
+        final List<PendingWrite> group = new ArrayList<>();
+        for (PendingWrite write = pendingWrites.poll(); write != null; write = pendingWrites.poll()) {
+            group.add(write);
+        }
+        final List<PendingWrite> accepted = new ArrayList<>(group.size());
+        try {
+            final long logPosition;
+            final boolean needFlush;
+            lock.writeLock().lock();
+            try {
+                final Set<ByteBuffer> written = new HashSet<>();
+                int size = 0;
+                for (final PendingWrite write : group) {
+                    if (changedSince(write.getReadKeys(), written, write.getReadSequence())) {
+                        write.complete(false);
+                        continue;
+                    }
+                    final WriteBatch batch = write.getBatch();
+                    for (int i = 0; i < batch.size(); ++i) {
+                        written.add(batch.keyAt(i));
+                    }
+                    size += batch.size();
+                    accepted.add(write);
+                }
+                if (size == 0) {
+                    accepted.forEach(write -> write.complete(true));
+                    return false;
+                }
+
+                final long firstSequence = allocateSequences(size);
+                final List<Cell> cells = new ArrayList<>(size);
+                for (final PendingWrite write : accepted) {
+                    final WriteBatch batch = write.getBatch();
+                    for (int i = 0; i < batch.size(); ++i) {
+                        final ByteBuffer value = batch.valueAt(i);
+                        final long sequence = firstSequence + cells.size();
+                        cells.add(new Cell(
+                                batch.keyAt(i),
+                                value == null ? Value.newTombstoneValue(sequence) : new Value(sequence, value)));
+                    }
+                }
+                logPosition = wal.append(cells);
+                final MemoryTable memtable = tableSet.getMemtable();
+                final long oldestSnapshot = oldestSnapshot();
+                groupVersion.incrementAndGet();
+                try {
+                    for (final Cell cell : cells) {
+                        memtable.put(cell.getKey(), cell.getValue(), oldestSnapshot);
+                    }
+                } finally {
+                    groupVersion.incrementAndGet();
+                }
+                needFlush = memtable.getAmountOfBytes() > amountOfBytesToFlush;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            wal.sync(logPosition);
+            accepted.forEach(write -> write.complete(true));
+            return needFlush;
+        } catch (IOException e) {
+            accepted.forEach(write -> write.fail(e));
+            return false;
+        } catch (RuntimeException e) {
+            //the writers of the group mustn't wait for the result forever
+            final IOException error = new IOException("Unable to commit the group", e);
+            group.stream().filter(write -> !write.isDone()).forEach(write -> write.fail(error));
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether one of the keys has been changed since the sequence or is written by the group.
+     */
+    private boolean changedSince(
+            @NotNull final Collection<ByteBuffer> keys,
+            @NotNull final Set<ByteBuffer> written,
+            final long sequence) {
+        for (final ByteBuffer key : keys) {
+            if (written.contains(key) || changedSince(key, sequence)) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    /**
+     * Returns whether the freshest version of the key is newer than the sequence.
+     * Must be called under the write lock, so the current table set isn't released meanwhile.
+     */
+    private boolean changedSince(@NotNull final ByteBuffer key, final long sequence) {
+        final TableSet tables = tableSet;
+        Value value = getFromMemtables(tables, key, Long.MAX_VALUE);
+        if (value == null) {
+            value = tables.getSsTables().get(key, BloomFilter.hash(key), Long.MAX_VALUE, filterStats);
+        }
+        return value != null && value.getSequence() > sequence;
+    }
+
+    /**
+     * Logs the value and puts it to the memory table.
+     * Must be called under the read lock, so the log isn't rolled between these steps
+     * and no snapshot is taken after the sequence of the value is allocated and before the value is put.
+     * @return the position of the log to sync after the lock is released.
+     */
+    private long put(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        final long logPosition = wal.append(Collections.singletonList(new Cell(key, value)));
+        tableSet.getMemtable().put(key, value, oldestSnapshot());
+        return logPosition;
+    }
+
+    /**
+     * Allocates the consecutive sequences of the writes and returns the first of them.
+     * A sequence is never less than the current time in milliseconds, so the writes are newer than the versions
+     * of the tables written by the older versions of the DAO, which are stamped by the time.
+     * Must be called under the lock, so a snapshot sees either all the writes of the sequences or none of them.
+     */
+    private long allocateSequences(final int count) {
+        final long last = lastSequence.accumulateAndGet(
+                System.currentTimeMillis(),
+                (previous, now) -> Math.max(previous + 1, now) + count - 1);
+        return last - count + 1;
+    }
+
+    /**
+     * Takes the snapshot which sees the writes made before it.
+     * It is taken under the write lock, so it doesn't see a part of a batch or a write which isn't applied yet.
+     */
+    @NotNull
+    @Override
+    public SnapshotImpl snapshot() {
+        final long sequence;
+        lock.writeLock().lock();
+        try {
+            sequence = lastSequence.get();
+            snapshots.merge(sequence, 1, Integer::sum);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return new SnapshotImpl(this, sequence);
+    }
+
+    void releaseSnapshot(final long sequence) {
+        snapshots.computeIfPresent(sequence, (s, count) -> count == 1 ? null : count - 1);
+    }
+
+    private long oldestSnapshot() {
+        final Map.Entry<Long, Integer> oldest = snapshots.firstEntry();
+        return oldest == null ? Long.MAX_VALUE : oldest.getKey();
+    }
+
+    /**
+     * Returns the sequences which see the versions kept by flushes and compactions in descending order:
+     * {@link Long#MAX_VALUE} which sees the freshest versions and the sequences of the live snapshots.
+     * The snapshots taken later see the freshest versions of the flushed and compacted tables.
+     */
+    @NotNull
+    private long[] retainedSequences() {
+        final List<Long> live = new ArrayList<>(snapshots.descendingKeySet());
+        final long[] sequences = new long[live.size() + 1];
+        sequences[0] = Long.MAX_VALUE;
+        for (int i = 0; i < live.size(); ++i) {
+            sequences[i + 1] = live.get(i);
+        }
+        return sequences;
     }
 
     @Override
     public void close() throws IOException {
-        if (memtable.size() > 0) {
-            flush();
+        //the running compaction needs the write lock to finish
+        compactor.shutdown();
+        try {
+            while (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for the compaction to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the compaction");
+        }
+        if (subcompactor != null) {
+            subcompactor.shutdown();
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (tableSet.getMemtable().size() > 0) {
+                freezeMemtable();
+            }
+            awaitFlushes();
+        } finally {
+            flusher.shutdown();
+            wal.close();
+            //the tables are closed when the iterators which read them are released
+            tableSet.release();
+            manifest.close();
+            lock.writeLock().unlock();
         }
-        ssTables.values().forEach(Table::close);
     }
 
+    /**
+     * Flushes the memory table and merges all the SSTables as {@link CompactionPolicy#fullCompaction(List)} says.
+     * The merge is made by the compaction thread, so reads and writes proceed while it is running.
+     */
     @Override
     public void compact() throws IOException {
-        final Iterator<Cell> freshElements = freshCellIterator(EMPTY_BUFFER);
-        final File dst = serialize(freshElements);
+        lock.writeLock().lock();
+        try {
+            if (tableSet.getMemtable().size() > 0) {
+                freezeMemtable();
+            }
+            awaitFlushes();
+        } finally {
+            lock.writeLock().unlock();
+        }
 
-        try (Stream<Path> files = Files.list(storage.toPath())) {
-            files.filter(f -> !f.getFileName().toFile().toString().equals(dst.getName()))
-                .forEach(f -> {
-                    try {
-                        Files.delete(f);
-                    } catch (IOException e) {
-                        logger.warn("Unable to delete file: " + f.getFileName().toFile().toString(), e);
-                    }
-                });
+        final CompactionPolicy policy = config.getCompactionPolicy();
+        final Future<Boolean> compaction;
+        try {
+            compaction = compactor.submit(() -> compact(policy::fullCompaction, true));
+        } catch (RejectedExecutionException e) {
+            throw new IOException("The DAO is closed", e);
+        }
+        try {
+            compaction.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the compaction");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compact the tables", e.getCause());
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (!compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactor.execute(this::compactInBackground);
+        } catch (RejectedExecutionException e) {
+            //the DAO is being closed
+            compactionScheduled.set(false);
+        }
+    }
+
+    private void compactInBackground() {
+        //the tables flushed since now schedule the next run
+        compactionScheduled.set(false);
+        try {
+            //ask the policy again, the result of the compaction may be compacted further
+            boolean compacted = true;
+            while (compacted) {
+                compacted = compact(config.getCompactionPolicy()::pickCompaction, false);
+            }
+        } catch (IOException | RuntimeException e) {
+            //nothing waits for the background run, so its failure is only seen in the log
+            logger.error("Background compaction failed", e);
+        }
+    }
+
+    /**
+     * Merges the tables picked by the policy and swaps the result in atomically.
+     * The result is written to the files of the new generations, so the merged tables stay intact
+     * until the swap is committed to the manifest. A crash before the commit leaves the result as garbage.
+     * The result put to level 0 takes the rank of the newest merged table, so it keeps its place
+     * among the other tables. The result put to a deeper level is ranked by its generations,
+     * so it wins over the merged tables of that level.
+     * The files of the merged tables are deleted after the commit, when the last reader releases them.
+     * Must be called by the compaction thread.
+     * @param picker - chooses the compaction, it may return null if there is nothing to compact.
+     * @param allowRewrite - whether a single table may be rewritten to the same level.
+     * @return whether the tables have been compacted.
+     */
+    private boolean compact(
+            @NotNull final Function<List<TableInfo>, Compaction> picker,
+            final boolean allowRewrite) throws IOException {
+        //the compacted tables are removed by this thread only, so the published set may be read without a reference
+        final List<SSTable> tables = tableSet.getSsTables().tables();
+        if (tables.isEmpty()) {
+            return false;
+        }
+
+        final Map<Integer, SSTable> byGeneration = new HashMap<>();
+        final List<TableInfo> infos = new ArrayList<>(tables.size());
+        for (final SSTable table : tables) {
+            byGeneration.put(table.getGeneration(), table);
+            infos.add(new TableInfo(table));
+        }
+        final Compaction compaction = picker.apply(infos);
+        if (compaction == null) {
+            return false;
+        }
+        final List<SSTable> inputs = new ArrayList<>(compaction.getInputs().size());
+        for (final TableInfo info : compaction.getInputs()) {
+            final SSTable table = byGeneration.get(info.getGeneration());
+            if (table == null || inputs.contains(table)) {
+                throw new IllegalStateException("Unknown table is picked for the compaction: " + info);
+            }
+            inputs.add(table);
+        }
+        final int outputLevel = compaction.getOutputLevel();
+        checkCompaction(tables, inputs, outputLevel, compaction);
+        if (inputs.size() == 1 && inputs.get(0).getLevel() == outputLevel && !allowRewrite) {
+            return false;
+        }
+
+        final CompactionStats stats = new CompactionStats();
+        final List<SSTable> outputs;
+        if (inputs.size() == 1 && inputs.get(0).getLevel() < outputLevel
+                && !overlapsLevel(tables, inputs.get(0), outputLevel)) {
+            outputs = Collections.singletonList(moveTable(inputs.get(0), outputLevel));
+        } else {
+            outputs = mergeTables(inputs, olderTables(tables, inputs, outputLevel), outputLevel,
+                    compaction.getMaxOutputTableSize(), stats);
+        }
+        final List<Manifest.TableEntry> added = new ArrayList<>(outputs.size());
+        outputs.forEach(output -> added.add(Manifest.TableEntry.of(output)));
+        final List<Manifest.TableEntry> removed = new ArrayList<>(inputs.size());
+        inputs.forEach(input -> removed.add(Manifest.TableEntry.of(input)));
+        manifest.commit(added, removed, generation.get(), lastSequence.get());
+
+        inputs.forEach(SSTable::markObsolete);
+        lock.writeLock().lock();
+        try {
+            publish(tableSet.compacted(inputs, outputs));
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        compactionStats.recordCompaction(stats);
+        logger.info("Compacted {} tables into {} tables of level {}, dropped {} tombstones and {} shadowed versions",
+                inputs.size(), outputs.size(), outputLevel, stats.getTombstonesDropped(), stats.getVersionsShadowed());
+        return true;
+    }
+
+    /**
+     * Checks that the result of the compaction won't be shadowed by older tables or shadow newer ones.
+     * The tables of a deeper level are ranked by their generations only where they overlap,
+     * so the result put there mustn't overlap the tables of that level which aren't merged.
+     */
+    private static void checkCompaction(
+            @NotNull final List<SSTable> tables,
+            @NotNull final List<SSTable> inputs,
+            final int outputLevel,
+            @NotNull final Compaction compaction) {
+        int maxLevel0Rank = -1;
+        ByteBuffer minKey = null;
+        ByteBuffer maxKey = null;
+        for (final SSTable input : inputs) {
+            if (input.getLevel() == 0) {
+                maxLevel0Rank = Math.max(maxLevel0Rank, input.getRank());
+            }
+            if (input.size() == 0) {
+                continue;
+            }
+            if (minKey == null || input.getMinKey().compareTo(minKey) < 0) {
+                minKey = input.getMinKey();
+            }
+            if (maxKey == null || input.getMaxKey().compareTo(maxKey) > 0) {
+                maxKey = input.getMaxKey();
+            }
+        }
+
+        if (outputLevel == 0) {
+            //the result takes the place of the newest input, so no other table may be between the inputs
+            int minRank = Integer.MAX_VALUE;
+            for (final SSTable input : inputs) {
+                minRank = Math.min(minRank, input.getRank());
+            }
+            for (final SSTable table : tables) {
+                if (table.getLevel() == 0 && !inputs.contains(table)
+                        && table.getRank() > minRank && table.getRank() < maxLevel0Rank) {
+                    throw new IllegalStateException("Level 0 inputs must be a contiguous run: " + compaction);
+                }
+            }
+            return;
+        }
+        if (minKey == null) {
+            return;
+        }
+
+        for (final SSTable table : tables) {
+            if (inputs.contains(table) || table.size() == 0
+                    || table.getMinKey().compareTo(maxKey) > 0 || table.getMaxKey().compareTo(minKey) < 0) {
+                continue;
+            }
+            final boolean valid;
+            if (table.getLevel() == 0) {
+                valid = table.getRank() > maxLevel0Rank;
+            } else {
+                valid = table.getLevel() > outputLevel;
+            }
+            if (!valid) {
+                throw new IllegalStateException("Compaction overlaps " + table.getFile().getName() + ": " + compaction);
+            }
         }
+    }
 
-        ssTables.clear();
-        memtable = new MemoryTable();
-        ssTables.put(generation, new SSTable(dst));
-        ++generation;
+    /**
+     * Checks whether a table of the level overlaps the key range of the table.
+     */
+    private static boolean overlapsLevel(
+            @NotNull final List<SSTable> tables,
+            @NotNull final SSTable table,
+            final int level) {
+        if (table.size() == 0) {
+            return false;
+        }
+        for (final SSTable other : tables) {
+            if (other != table && other.getLevel() == level && other.size() != 0
+                    && other.getMinKey().compareTo(table.getMaxKey()) <= 0
+                    && other.getMaxKey().compareTo(table.getMinKey()) >= 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private void flush() throws IOException {
-        final File dst = serialize(memtable.iterator(EMPTY_BUFFER));
-        ++generation;
-        ssTables.put(generation, new SSTable(dst));
-        memtable = new MemoryTable();
+    /**
+     * Returns the tables which contain the older data than the result of the compaction,
+     * a tombstone of the result is needed only if one of them might contain its key.
+     */
+    @NotNull
+    private static List<SSTable> olderTables(
+            @NotNull final List<SSTable> tables,
+            @NotNull final List<SSTable> inputs,
+            final int outputLevel) {
+        int minRank = Integer.MAX_VALUE;
+        for (final SSTable input : inputs) {
+            minRank = Math.min(minRank, input.getRank());
+        }
+        final List<SSTable> olderTables = new ArrayList<>();
+        for (final SSTable table : tables) {
+            if (inputs.contains(table) || table.size() == 0 || table.getLevel() < outputLevel) {
+                continue;
+            }
+            //the newer level 0 tables are above the result, while the overlapping tables of a deeper level are older
+            if (table.getLevel() > 0 || outputLevel > 0 || table.getRank() < minRank) {
+                olderTables.add(table);
+            }
+        }
+        return olderTables;
     }
 
-    List<Iterator<Cell>> getAllCellItersList(@NotNull final ByteBuffer from) {
-        //one more for TransactionalDAO iterator to not reallocate an array
-        final List<Iterator<Cell>> iters = new ArrayList<>(ssTables.size() + 2);
-        iters.add(memtable.iterator(from));
-        ssTables.descendingMap().values().forEach(ssTable -> {
+    /**
+     * Moves the table to the deeper level without rewriting it.
+     * The file of the level is a hard link, so the old one stays valid until the move is committed to the manifest.
+     */
+    @NotNull
+    private SSTable moveTable(@NotNull final SSTable table, final int level) throws IOException {
+        final File dst = new File(storage, fileName(table.getGeneration(), level));
+        //a file left by the interrupted move
+        Files.deleteIfExists(dst.toPath());
+        try {
+            Files.createLink(dst.toPath(), table.getFile().toPath());
+        } catch (UnsupportedOperationException e) {
+            Files.copy(table.getFile().toPath(), dst.toPath());
+            try (FileChannel channel = FileChannel.open(dst.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+        }
+        syncStorage();
+        return openTable(dst, table.getGeneration(), level, table.getRank());
+    }
+
+    @NotNull
+    private List<SSTable> mergeTables(
+            @NotNull final List<SSTable> inputs,
+            @NotNull final List<SSTable> olderTables,
+            final int outputLevel,
+            final long maxOutputTableSize,
+            @NotNull final CompactionStats stats) throws IOException {
+        //the newest tables go first, so their cells win on the equal keys
+        final List<SSTable> newestFirst = new ArrayList<>(inputs);
+        //the snapshots taken since now see the freshest versions
+        final long[] sequences = retainedSequences();
+        newestFirst.sort(Comparator.comparingInt(SSTable::getLevel)
+                .thenComparing(SSTable::getRank, Comparator.reverseOrder()));
+
+        long expectedKeys = 0;
+        long inputBytes = 0;
+        for (final SSTable ssTable : newestFirst) {
+            expectedKeys += ssTable.size();
+            inputBytes += ssTable.sizeInBytes();
+        }
+
+        if (outputLevel == 0) {
+            final int outputGeneration = newGeneration();
+            final File dst = serialize(
+                    compactionWriters.get(0),
+                    compactedCells(newestFirst, EMPTY_BUFFER, null, olderTables, sequences, stats),
+                    expectedKeys,
+                    outputGeneration,
+                    0,
+                    Long.MAX_VALUE);
+            return Collections.singletonList(openTable(dst, outputGeneration, 0, newestFirst.get(0).getRank()));
+        }
+
+        //the Bloom filter of every output is sized by its share of the inputs with some reserve
+        final long expectedKeysPerTable = (long) Math.min(
+                expectedKeys,
+                1.25 * expectedKeys * maxOutputTableSize / Math.max(1, inputBytes) + 1);
+        final int subcompactions = subcompactor == null
+                ? 1
+                : (int) Math.min(config.getMaxSubcompactions(), Math.max(1, inputBytes / maxOutputTableSize));
+        final List<ByteBuffer> boundaries = boundaries(newestFirst, subcompactions);
+        //the outputs of all the subcompactions, so the written ones are deleted if any of them fails
+        final List<SSTable> outputs = Collections.synchronizedList(new ArrayList<>());
+        if (boundaries.isEmpty()) {
+            final PeekingIterator<Cell> cells = compactedCells(newestFirst, EMPTY_BUFFER, null, olderTables, sequences,
+                    stats);
+            writeRange(compactionWriters.get(0), cells, outputLevel, maxOutputTableSize, expectedKeysPerTable, outputs);
+            return outputs;
+        }
+
+        final List<Callable<Void>> ranges = new ArrayList<>(boundaries.size() + 1);
+        for (int i = 0; i <= boundaries.size(); ++i) {
+            if (compactionWriters.size() <= i) {
+                compactionWriters.add(new SSTableWriter(config.getBloomFilterBitsPerKey(), writeStats, rateLimiter,
+                        true));
+            }
+            final SSTableWriter rangeWriter = compactionWriters.get(i);
+            final ByteBuffer from = i == 0 ? EMPTY_BUFFER : boundaries.get(i - 1);
+            final ByteBuffer to = i == boundaries.size() ? null : boundaries.get(i);
+            ranges.add(() -> {
+                final PeekingIterator<Cell> cells = compactedCells(newestFirst, from, to, olderTables, sequences,
+                        stats);
+                writeRange(rangeWriter, cells, outputLevel, maxOutputTableSize, expectedKeysPerTable, outputs);
+                return null;
+            });
+        }
+        IOException error = null;
+        for (final Future<Void> range : subcompactor.invokeAll(ranges)) {
             try {
-                iters.add(ssTable.iterator(from));
-            } catch (IOException e) {
-                logger.error("Something went wrong when the SSTable iterator was added to list iter!", e);
+                range.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = new InterruptedIOException("Interrupted while waiting for the subcompaction");
+            } catch (ExecutionException e) {
+                error = e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException("Subcompaction failed", e.getCause());
+            }
+        }
+        if (error != null) {
+            for (final SSTable output : outputs) {
+                output.close();
+                Files.deleteIfExists(output.getFile().toPath());
+            }
+            throw error;
+        }
+        //the ranges are written in any order, but a level is sorted by keys anyway
+        return new ArrayList<>(outputs);
+    }
+
+    /**
+     * Writes the cells of a key range into the tables of the level.
+     * @param outputs - where the written tables are added.
+     */
+    private void writeRange(
+            @NotNull final SSTableWriter rangeWriter,
+            @NotNull final PeekingIterator<Cell> freshElements,
+            final int outputLevel,
+            final long maxOutputTableSize,
+            final long expectedKeysPerTable,
+            @NotNull final List<SSTable> outputs) throws IOException {
+        while (freshElements.hasNext()) {
+            final int outputGeneration = newGeneration();
+            final File dst = serialize(
+                    rangeWriter,
+                    freshElements,
+                    expectedKeysPerTable,
+                    outputGeneration,
+                    outputLevel,
+                    maxOutputTableSize);
+            outputs.add(openTable(dst, outputGeneration, outputLevel));
+        }
+    }
+
+    /**
+     * Splits the key space of the tables into the ranges of about the same size by their index samples.
+     * @return the keys which start every range but the first one, they are sorted and distinct.
+     */
+    @NotNull
+    private static List<ByteBuffer> boundaries(@NotNull final List<SSTable> tables, final int ranges) {
+        if (ranges == 1) {
+            return Collections.emptyList();
+        }
+        final List<ByteBuffer> samples = new ArrayList<>();
+        for (final SSTable table : tables) {
+            samples.addAll(table.sampleKeys());
+        }
+        samples.sort(null);
+        final List<ByteBuffer> boundaries = new ArrayList<>(ranges - 1);
+        for (int i = 1; i < ranges; ++i) {
+            final ByteBuffer boundary = samples.isEmpty() ? null : samples.get(i * samples.size() / ranges);
+            if (boundary != null && boundary.hasRemaining()
+                    && (boundaries.isEmpty() || boundaries.get(boundaries.size() - 1).compareTo(boundary) < 0)) {
+                boundaries.add(boundary);
+            }
+        }
+        return boundaries;
+    }
+
+    /**
+     * Merges the cells of the tables in the key range, the freshest version of every key is left
+     * as well as the versions which the live snapshots see.
+     * The tombstones are dropped unless an older table might contain their keys or an older version is left.
+     * This relies on the result being written to the new files: the merged tables stay intact until the manifest
+     * commit, so a crash before it never leaves the older data without the tombstones which shadow it.
+     * @param to - the end of the range, exclusive, null means the range isn't bounded.
+     * @param olderTables - the tables which contain the older data than the merged ones.
+     * @param sequences - the sequences which see the left versions, see {@link #retainedSequences()}.
+     * @param stats - counters of the dropped cells.
+     */
+    @NotNull
+    private PeekingIterator<Cell> compactedCells(
+            @NotNull final List<SSTable> newestFirst,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            @NotNull final List<SSTable> olderTables,
+            @NotNull final long[] sequences,
+            @NotNull final CompactionStats stats) {
+        final List<Iterator<Cell>> iters = new ArrayList<>(newestFirst.size());
+        for (final SSTable ssTable : newestFirst) {
+            iters.add(ssTable.iterator(from, to));
+        }
+        return Iterators.peekingIterator(new AbstractIterator<>() {
+            //bytes of the input cells which haven't been passed to the rate limiter yet
+            private long unpacedBytes;
+            private final PeekingIterator<Cell> merged = Iterators.peekingIterator(
+                    new MergingIterator(iters, false, sequences, false, shadowed -> {
+                        pace(shadowed);
+                        stats.recordVersionShadowed();
+                    }));
+
+            @Override
+            protected Cell computeNext() {
+                while (merged.hasNext()) {
+                    final Cell cell = merged.next();
+                    pace(cell);
+                    if (cell.getValue().isTombstone()
+                            && !(merged.hasNext() && merged.peek().key().equals(cell.key()))
+                            && !olderTablesMightContain(cell.getKey(), olderTables)) {
+                        stats.recordTombstoneDropped();
+                        continue;
+                    }
+                    return cell;
+                }
+                return endOfData();
+            }
+
+            /**
+             * Passes the read bytes to the rate limiter by the big chunks.
+             */
+            private void pace(@NotNull final Cell cell) {
+                if (rateLimiter == null) {
+                    return;
+                }
+                unpacedBytes += cell.key().remaining();
+                if (!cell.getValue().isTombstone()) {
+                    unpacedBytes += cell.getValue().getData().remaining();
+                }
+                if (unpacedBytes >= RATE_LIMITER_CHUNK_SIZE) {
+                    rateLimiter.acquire(unpacedBytes, true);
+                    unpacedBytes = 0;
+                }
             }
         });
+    }
+
+    private static boolean olderTablesMightContain(
+            @NotNull final ByteBuffer key,
+            @NotNull final List<SSTable> olderTables) {
+        if (olderTables.isEmpty()) {
+            return false;
+        }
+        final long keyHash = BloomFilter.hash(key);
+        for (final SSTable table : olderTables) {
+            if (table.covers(key) && table.mightContain(keyHash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Freezes the memory table unless another writer has already done it.
+     * Blocks while there are too many immutable memory tables waiting for the flush.
+     */
+    private void flushIfFull() throws IOException {
+        lock.writeLock().lock();
+        try {
+            while (immutableMemtables.size() >= config.getMaxImmutableMemtables()
+                    && tableSet.getMemtable().getAmountOfBytes() > amountOfBytesToFlush) {
+                checkFlushError();
+                memtableFlushed.awaitUninterruptibly();
+            }
+            if (tableSet.getMemtable().getAmountOfBytes() > amountOfBytesToFlush) {
+                freezeMemtable();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the memory table with an empty one and flushes the full table in the background.
+     * The full table stays readable until its SSTable is ready.
+     * Must be called under the write lock.
+     */
+    private void freezeMemtable() throws IOException {
+        checkFlushError();
+        final int flushGeneration = newGeneration();
+        final MemoryTable immutableMemtable = tableSet.getMemtable();
+        final long walSegment = wal.roll();
+        immutableMemtables.put(flushGeneration, immutableMemtable);
+        publish(tableSet.withMemtable(new MemoryTable()));
+        flusher.execute(() -> flush(flushGeneration, immutableMemtable, walSegment));
+    }
+
+    private void flush(
+            final int flushGeneration,
+            @NotNull final MemoryTable immutableMemtable,
+            final long walSegment) {
+        SSTable ssTable = null;
+        IOException error = null;
+        try {
+            //the versions which the snapshots closed since the writes don't need are dropped
+            final Iterator<Cell> cells = new MergingIterator(
+                    Collections.singletonList(immutableMemtable.iterator(EMPTY_BUFFER)),
+                    false,
+                    retainedSequences(),
+                    false,
+                    null);
+            final File dst = serialize(
+                    writer,
+                    Iterators.peekingIterator(cells),
+                    immutableMemtable.size(),
+                    flushGeneration,
+                    0,
+                    Long.MAX_VALUE);
+            ssTable = openTable(dst, flushGeneration, 0);
+            manifest.commit(
+                    Collections.singletonList(Manifest.TableEntry.of(ssTable)),
+                    Collections.emptyList(),
+                    generation.get(),
+                    lastSequence.get());
+            //the table is durable, so the log of it and of the tables replayed on startup isn't needed
+            wal.deleteUpTo(walSegment);
+        } catch (IOException e) {
+            logger.error("Unable to flush the memory table of generation " + flushGeneration, e);
+            error = e;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (ssTable == null) {
+                flushError = error;
+            } else {
+                publish(tableSet.flushed(immutableMemtable, ssTable));
+                immutableMemtables.remove(flushGeneration);
+            }
+            memtableFlushed.signalAll();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (ssTable != null) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Waits until all the immutable memory tables are flushed.
+     * Must be called under the write lock.
+     */
+    private void awaitFlushes() throws IOException {
+        while (!immutableMemtables.isEmpty()) {
+            checkFlushError();
+            memtableFlushed.awaitUninterruptibly();
+        }
+    }
 
-        return iters;
+    private void checkFlushError() throws IOException {
+        if (flushError != null) {
+            throw new IOException("The memory table can't be flushed", flushError);
+        }
     }
 
-    private Iterator<Cell> freshCellIterator(@NotNull final ByteBuffer from) {
-        final List<Iterator<Cell>> iters = getAllCellItersList(from);
+    /**
+     * Returns the counters of Bloom filter checks made by {@link #get(ByteBuffer)}.
+     */
+    @NotNull
+    public FilterStats getFilterStats() {
+        return filterStats;
+    }
+
+    /**
+     * Returns the counters of the block cache.
+     */
+    @NotNull
+    public CacheStats getCacheStats() {
+        return blockCache == null ? new CacheStats() : blockCache.getStats();
+    }
 
-        final Iterator<Cell> mergedElements = Iterators.mergeSorted(
-                iters,
-                Cell.BY_KEY_AND_VALUE_CREATION_TIME_COMPARATOR
-        );
+    /**
+     * Returns the counters of SSTables written by flushes and compactions.
+     */
+    @NotNull
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
 
-        return Iters.collapseEquals(mergedElements, Cell::getKey);
+    /**
+     * Returns the counters of the garbage collected by compactions.
+     */
+    @NotNull
+    public CompactionStats getCompactionStats() {
+        return compactionStats;
     }
 
-    private File serialize(final Iterator<Cell> iterator) throws IOException {
-        final File file = new File(storage, generation + SSTABLE_TEMPORARY_FILE_POSTFIX);
-        file.createNewFile();
-        SSTable.serialize(file, iterator);
-        final String newFileName = generation + SSTABLE_FILE_POSTFIX;
-        final File dst = new File(storage, newFileName);
+    /**
+     * Writes the table and renames it atomically, so a partially written table is never loaded.
+     * @param maxBytes - size of the data after which the table is finished, the rest is left in the iterator.
+     *                 The versions of a key are never split between the tables.
+     */
+    private File serialize(
+            @NotNull final SSTableWriter tableWriter,
+            @NotNull final PeekingIterator<Cell> iterator,
+            final long expectedKeys,
+            final int tableGeneration,
+            final int level,
+            final long maxBytes) throws IOException {
+        final File file = new File(storage, tableGeneration + SSTABLE_TEMPORARY_FILE_POSTFIX);
+        tableWriter.write(file, iterator, (int) Math.min(expectedKeys, Integer.MAX_VALUE), maxBytes);
+        final File dst = new File(storage, fileName(tableGeneration, level));
         Files.move(file.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncStorage();
 
         return dst;
     }
 
+    @NotNull
+    private SSTable openTable(@NotNull final File file, final int tableGeneration, final int level) throws IOException {
+        return openTable(file, tableGeneration, level, tableGeneration);
+    }
+
+    @NotNull
+    private SSTable openTable(
+            @NotNull final File file,
+            final int tableGeneration,
+            final int level,
+            final int rank) throws IOException {
+        return new SSTable(file, tableGeneration, level, rank, nextTableId.getAndIncrement(), blockCache, null, null);
+    }
+
+    @NotNull
+    private static String fileName(final int tableGeneration, final int level) {
+        return level == 0
+                ? tableGeneration + SSTABLE_FILE_POSTFIX
+                : tableGeneration + String.valueOf(LEVEL_SEPARATOR) + level + SSTABLE_FILE_POSTFIX;
+    }
+
+    /**
+     * Forces the directory, so the renamed table survives a crash.
+     */
+    private void syncStorage() {
+        try (FileChannel directory = FileChannel.open(storage.toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            //some platforms can't open directories
+            logger.debug("Unable to sync the directory: " + storage, e);
+        }
+    }
+
+    @NotNull
+    LockManager getLockManager() {
+        return lockManager;
+    }
+
     @Override
     public TransactionalDAO beginTransaction() {
-        return new TransactionalDAOImpl(this);
+        return new TransactionalDAOImpl(this, false);
+    }
+
+    @Override
+    public TransactionalDAO beginOptimisticTransaction() {
+        return new TransactionalDAOImpl(this, true);
     }
 
 }
@@ -0,0 +1,406 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the changes of the live SSTable set.
+ * Every flush and compaction appends a single edit which adds and removes the tables at once,
+ * so the table set changes atomically: after a crash it is either before or after the edit.
+ * The tables which are not in the manifest are garbage of the interrupted flushes and compactions.
+ * The log is replaced by a snapshot of the live set on open and after every {@link #EDITS_PER_SNAPSHOT} edits.
+ * Record structure is the same as in {@link WriteAheadLog}.
+ * * payload size | payload CRC32C | payload
+ * Payload structure.
+ * * next generation | amount of removed | [ generation ] | amount of added | [ table ] | last sequence | [ rank ]
+ * Table structure.
+ * * generation | level | min key size | min key | max key size | max key
+ * if min key size is -1 than the keys are absent, the keys longer than {@link #MAX_KEY_SIZE} aren't stored,
+ * so the huge keys don't bloat the manifest, and such tables read their key range from the files.
+ * A snapshot is an edit which adds all the live tables.
+ * It is written to a temporary file which replaces the manifest by the atomic rename.
+ */
+final class Manifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(Manifest.class);
+
+    private static final String FILE_NAME = "MANIFEST";
+    private static final String TEMPORARY_FILE_NAME = "MANIFEST.tmp";
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    static final int EDITS_PER_SNAPSHOT = 1000;
+    static final int MAX_KEY_SIZE = 1024;
+
+    private final File storage;
+    //live tables by generations
+    private final Map<Integer, TableEntry> tables = new TreeMap<>();
+    private int nextGeneration;
+    //the greatest sequence of the writes which may be in the tables
+    private long lastSequence;
+    private FileChannel channel;
+    private int editsSinceSnapshot;
+
+    private Manifest(@NotNull final File storage) {
+        this.storage = storage;
+    }
+
+    static boolean exists(@NotNull final File storage) {
+        return new File(storage, FILE_NAME).exists();
+    }
+
+    /**
+     * Reads the manifest and replaces it by the snapshot.
+     * A torn edit at the end of the log is skipped, so the table set is the one before it.
+     * An edit which has the valid checksum, but not the layout of the edits, is the corruption which fails the open.
+     */
+    @NotNull
+    static Manifest open(@NotNull final File storage) throws IOException {
+        final Manifest manifest = new Manifest(storage);
+        manifest.replay();
+        manifest.snapshot();
+        return manifest;
+    }
+
+    /**
+     * Creates the manifest of the tables found without it, e.g. in the storage written by the older versions.
+     * @param lastSequence - the sequence which the sequences of the new writes are greater than.
+     */
+    @NotNull
+    static Manifest create(
+            @NotNull final File storage,
+            @NotNull final Collection<TableEntry> tables,
+            final int nextGeneration,
+            final long lastSequence) throws IOException {
+        final Manifest manifest = new Manifest(storage);
+        for (final TableEntry table : tables) {
+            manifest.tables.put(table.generation, table);
+        }
+        manifest.nextGeneration = nextGeneration;
+        manifest.lastSequence = lastSequence;
+        manifest.snapshot();
+        return manifest;
+    }
+
+    /**
+     * Returns the live tables.
+     */
+    @NotNull
+    synchronized List<TableEntry> tables() {
+        return new ArrayList<>(tables.values());
+    }
+
+    /**
+     * Returns the generation which is greater than the generations of all the tables ever added
+     * and of all the table files ever created, since the DAO reserves the generations before it creates the files.
+     */
+    synchronized int getNextGeneration() {
+        return nextGeneration;
+    }
+
+    /**
+     * Returns the sequence which is not less than the sequences of all the writes in the tables,
+     * so the sequences of the new writes are greater than it even if the log of the writes is deleted.
+     */
+    synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Appends the edit and forces it, so the change of the table set is durable when it returns.
+     * @param added - the new tables, their files must be durable already.
+     * @param removed - the replaced tables, their files may be deleted after it.
+     * @param generation - the next generation of the DAO or the generation up to which the DAO reserves them.
+     * @param sequence - the last sequence of the DAO.
+     */
+    synchronized void commit(
+            @NotNull final Collection<TableEntry> added,
+            @NotNull final Collection<TableEntry> removed,
+            final int generation,
+            final long sequence) throws IOException {
+        final ByteBuffer record = encode(added, removed, generation, sequence);
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+        apply(added, removed, generation, sequence);
+
+        if (++editsSinceSnapshot >= EDITS_PER_SNAPSHOT) {
+            snapshot();
+        }
+    }
+
+    synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void apply(
+            @NotNull final Collection<TableEntry> added,
+            @NotNull final Collection<TableEntry> removed,
+            final int generation,
+            final long sequence) {
+        for (final TableEntry table : removed) {
+            tables.remove(table.generation);
+        }
+        for (final TableEntry table : added) {
+            tables.put(table.generation, table);
+        }
+        nextGeneration = Math.max(nextGeneration, generation);
+        lastSequence = Math.max(lastSequence, sequence);
+    }
+
+    private void snapshot() throws IOException {
+        final File file = new File(storage, TEMPORARY_FILE_NAME);
+        try (FileChannel snapshot = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer record = encode(tables.values(), Collections.emptyList(), nextGeneration, lastSequence);
+            while (record.hasRemaining()) {
+                snapshot.write(record);
+            }
+            snapshot.force(false);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        final File dst = new File(storage, FILE_NAME);
+        Files.move(file.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel directory = FileChannel.open(storage.toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            //some platforms can't open directories
+            logger.debug("Unable to sync the directory: " + storage, e);
+        }
+        channel = FileChannel.open(dst.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        editsSinceSnapshot = 0;
+    }
+
+    private void replay() throws IOException {
+        final File file = new File(storage, FILE_NAME);
+        try (FileChannel log = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = log.size();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long position = 0;
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(log, header, position);
+                final int payloadSize = header.getInt(0);
+                if (payloadSize < Integer.BYTES || position + HEADER_SIZE + payloadSize > size) {
+                    break;
+                }
+                final ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+                readFully(log, payload, position + HEADER_SIZE);
+                final CRC32C crc = new CRC32C();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != header.getInt(Integer.BYTES)) {
+                    break;
+                }
+                try {
+                    decode(payload);
+                } catch (BufferUnderflowException | IllegalArgumentException e) {
+                    throw new IOException("Malformed edit of the manifest at " + position, e);
+                }
+                position += HEADER_SIZE + payloadSize;
+            }
+            if (position < size) {
+                logger.warn("The tail of the manifest is torn, {} bytes are skipped", size - position);
+            }
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer encode(
+            @NotNull final Collection<TableEntry> added,
+            @NotNull final Collection<TableEntry> removed,
+            final int generation,
+            final long sequence) {
+        int payloadSize = Integer.BYTES * 3 + Integer.BYTES * removed.size() + Long.BYTES
+                + Integer.BYTES * added.size();
+        for (final TableEntry table : added) {
+            payloadSize += Integer.BYTES * 3;
+            if (table.hasKeyRange()) {
+                payloadSize += Integer.BYTES + table.minKey.remaining() + table.maxKey.remaining();
+            }
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        record.position(HEADER_SIZE);
+        record.putInt(generation);
+        record.putInt(removed.size());
+        for (final TableEntry table : removed) {
+            record.putInt(table.generation);
+        }
+        record.putInt(added.size());
+        for (final TableEntry table : added) {
+            record.putInt(table.generation)
+                    .putInt(table.level);
+            if (table.hasKeyRange()) {
+                record.putInt(table.minKey.remaining())
+                        .put(table.minKey.duplicate())
+                        .putInt(table.maxKey.remaining())
+                        .put(table.maxKey.duplicate());
+            } else {
+                record.putInt(-1);
+            }
+        }
+        record.putLong(sequence);
+        for (final TableEntry table : added) {
+            record.putInt(table.rank);
+        }
+        record.flip();
+
+        final CRC32C crc = new CRC32C();
+        crc.update(record.duplicate().position(HEADER_SIZE));
+        record.putInt(0, payloadSize);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        return record;
+    }
+
+    private void decode(@NotNull final ByteBuffer payload) {
+        final int generation = payload.getInt();
+        final int amountOfRemoved = checkAmount(payload.getInt());
+        final List<TableEntry> removed = new ArrayList<>(amountOfRemoved);
+        for (int i = 0; i < amountOfRemoved; ++i) {
+            final TableEntry table = tables.get(payload.getInt());
+            if (table != null) {
+                removed.add(table);
+            }
+        }
+        final int amountOfAdded = checkAmount(payload.getInt());
+        final int[] generations = new int[amountOfAdded];
+        final int[] levels = new int[amountOfAdded];
+        final ByteBuffer[] minKeys = new ByteBuffer[amountOfAdded];
+        final ByteBuffer[] maxKeys = new ByteBuffer[amountOfAdded];
+        for (int i = 0; i < amountOfAdded; ++i) {
+            generations[i] = payload.getInt();
+            levels[i] = payload.getInt();
+            final int minKeySize = payload.getInt();
+            minKeys[i] = minKeySize == -1 ? null : slice(payload, minKeySize);
+            maxKeys[i] = minKeySize == -1 ? null : slice(payload, payload.getInt());
+        }
+        final long sequence = payload.getLong();
+        final List<TableEntry> added = new ArrayList<>(amountOfAdded);
+        for (int i = 0; i < amountOfAdded; ++i) {
+            final int rank = payload.getInt();
+            added.add(new TableEntry(generations[i], levels[i], rank, minKeys[i], maxKeys[i]));
+        }
+        if (payload.hasRemaining()) {
+            throw new IllegalArgumentException("Unexpected " + payload.remaining() + " bytes at the end of the edit");
+        }
+        apply(added, removed, generation, sequence);
+    }
+
+    private static int checkAmount(final int amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Negative amount of tables: " + amount);
+        }
+        return amount;
+    }
+
+    private static ByteBuffer slice(@NotNull final ByteBuffer buffer, final int length) {
+        final ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static void readFully(
+            @NotNull final FileChannel channel,
+            @NotNull final ByteBuffer buffer,
+            final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of the manifest");
+            }
+            offset += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Live table recorded in the manifest.
+     */
+    static final class TableEntry {
+        private final int generation;
+        private final int level;
+        private final int rank;
+        @Nullable
+        private final ByteBuffer minKey;
+        @Nullable
+        private final ByteBuffer maxKey;
+
+        TableEntry(
+                final int generation,
+                final int level,
+                final int rank,
+                @Nullable final ByteBuffer minKey,
+                @Nullable final ByteBuffer maxKey) {
+            this.generation = generation;
+            this.level = level;
+            this.rank = rank;
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+        }
+
+        @NotNull
+        static TableEntry of(@NotNull final SSTable table) {
+            final ByteBuffer minKey = table.getMinKey();
+            final ByteBuffer maxKey = table.getMaxKey();
+            if (minKey.remaining() > MAX_KEY_SIZE || maxKey.remaining() > MAX_KEY_SIZE) {
+                return new TableEntry(table.getGeneration(), table.getLevel(), table.getRank(), null, null);
+            }
+            return new TableEntry(table.getGeneration(), table.getLevel(), table.getRank(), minKey, maxKey);
+        }
+
+        private boolean hasKeyRange() {
+            return minKey != null && maxKey != null;
+        }
+
+        int getGeneration() {
+            return generation;
+        }
+
+        int getLevel() {
+            return level;
+        }
+
+        int getRank() {
+            return rank;
+        }
+
+        /**
+         * Returns the min key of the table or null if it isn't stored in the manifest.
+         */
+        @Nullable
+        ByteBuffer getMinKey() {
+            return minKey == null ? null : minKey.asReadOnlyBuffer();
+        }
+
+        /**
+         * Returns the max key of the table or null if it isn't stored in the manifest.
+         */
+        @Nullable
+        ByteBuffer getMaxKey() {
+            return maxKey == null ? null : maxKey.asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapping of a whole file.
+ * A single {@link java.nio.MappedByteBuffer} can't be larger than 2 GB,
+ * so the file is mapped as a sequence of chunks and addressed by long positions.
+ */
+final class MappedFile {
+
+    //every region addressed by an int offset fits into one chunk
+    private static final long CHUNK_SIZE = Integer.MAX_VALUE;
+
+    private final long chunkSize;
+    private final ByteBuffer[] chunks;
+    private final long size;
+
+    MappedFile(@NotNull final FileChannel fileChannel) throws IOException {
+        this(fileChannel, CHUNK_SIZE);
+    }
+
+    /**
+     * Maps the file by the chunks of the given size, the small chunks let the tests cross their borders.
+     */
+    MappedFile(@NotNull final FileChannel fileChannel, final long chunkSize) throws IOException {
+        this.chunkSize = chunkSize;
+        this.size = fileChannel.size();
+        final int amountOfChunks = (int) ((size + chunkSize - 1) / chunkSize);
+        this.chunks = new ByteBuffer[amountOfChunks];
+        for (int i = 0; i < amountOfChunks; ++i) {
+            final long chunkStart = i * chunkSize;
+            chunks[i] = fileChannel.map(
+                    FileChannel.MapMode.READ_ONLY, chunkStart, Math.min(chunkSize, size - chunkStart));
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    int getInt(final long position) {
+        final ByteBuffer chunk = chunks[chunkIndex(position)];
+        final int offset = chunkOffset(position);
+        if (offset + Integer.BYTES <= chunk.limit()) {
+            return chunk.getInt(offset);
+        }
+        return copy(position, Integer.BYTES).getInt();
+    }
+
+    long getLong(final long position) {
+        final ByteBuffer chunk = chunks[chunkIndex(position)];
+        final int offset = chunkOffset(position);
+        if (offset + Long.BYTES <= chunk.limit()) {
+            return chunk.getLong(offset);
+        }
+        return copy(position, Long.BYTES).getLong();
+    }
+
+    /**
+     * Returns read-only view of the mapping in range [position, position + length).
+     * The region crossing the border of two chunks is copied to the heap,
+     * otherwise no data is copied at all.
+     */
+    @NotNull
+    ByteBuffer slice(final long position, final int length) {
+        final ByteBuffer chunk = chunks[chunkIndex(position)];
+        final int offset = chunkOffset(position);
+        if (offset + length > chunk.limit()) {
+            return copy(position, length).asReadOnlyBuffer();
+        }
+        final ByteBuffer slice = chunk.duplicate();
+        slice.limit(offset + length).position(offset);
+        return slice.slice();
+    }
+
+    private ByteBuffer copy(final long position, final int length) {
+        final ByteBuffer result = ByteBuffer.allocate(length);
+        long current = position;
+        while (result.hasRemaining()) {
+            final ByteBuffer chunk = chunks[chunkIndex(current)].duplicate();
+            final int offset = chunkOffset(current);
+            final int toCopy = Math.min(result.remaining(), chunk.limit() - offset);
+            chunk.limit(offset + toCopy).position(offset);
+            result.put(chunk);
+            current += toCopy;
+        }
+        return result.flip();
+    }
+
+    private int chunkIndex(final long position) {
+        return (int) (position / chunkSize);
+    }
+
+    private int chunkOffset(final long position) {
+        return (int) (position % chunkSize);
+    }
+}
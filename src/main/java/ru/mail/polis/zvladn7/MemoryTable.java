@@ -4,62 +4,139 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
+/**
+ * Memory table which may be updated and read by many threads at once.
+ * It is based on the lock-free skip list, so its iterators are weakly consistent:
+ * they never throw {@link java.util.ConcurrentModificationException} and may or may not reflect
+ * the updates made after their creation.
+ * Every key has a chain of its versions from the newest to the oldest one.
+ * The older versions are kept only while the snapshots need them, usually the chain is the single version.
+ */
 public class MemoryTable implements Table {
 
-    private final SortedMap<ByteBuffer, Value> map = new TreeMap<>();
+    private final ConcurrentNavigableMap<ByteBuffer, Version> map = new ConcurrentSkipListMap<>();
 
-    private int currentAmountOfBytes;
+    private final LongAdder currentAmountOfBytes = new LongAdder();
+    //size() of the skip list is linear, so the amount of keys is counted separately
+    private final LongAdder amountOfKeys = new LongAdder();
 
-    public int getAmountOfBytes() {
-        return currentAmountOfBytes;
+    public long getAmountOfBytes() {
+        return currentAmountOfBytes.sum();
     }
 
     @NotNull
     @Override
-    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
-        return map.tailMap(from)
-                .entrySet()
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return cells(range(from, to));
+    }
+
+    /**
+     * The keys go in descending order, but the versions of a key still go from the newest one.
+     */
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return cells(range(from, to).descendingMap());
+    }
+
+    @NotNull
+    private NavigableMap<ByteBuffer, Version> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (to == null) {
+            return map.tailMap(from, true);
+        }
+        if (from.compareTo(to) >= 0) {
+            return Collections.emptyNavigableMap();
+        }
+        return map.subMap(from, true, to, false);
+    }
+
+    @NotNull
+    private static Iterator<Cell> cells(@NotNull final NavigableMap<ByteBuffer, Version> range) {
+        return range.entrySet()
                 .stream()
-                .map(entry -> new Cell(entry.getKey(), entry.getValue()))
+                .flatMap(MemoryTable::versions)
                 .iterator();
     }
 
+    @NotNull
+    private static Stream<Cell> versions(@NotNull final Map.Entry<ByteBuffer, Version> entry) {
+        final Version newest = entry.getValue();
+        if (newest.previous == null) {
+            return Stream.of(new Cell(entry.getKey(), newest.value));
+        }
+        final Stream.Builder<Cell> versions = Stream.builder();
+        for (Version version = newest; version != null; version = version.previous) {
+            versions.add(new Cell(entry.getKey(), version.value));
+        }
+        return versions.build();
+    }
+
+    /**
+     * Returns the newest version which sequence isn't greater than the given one
+     * or null if there is no such version.
+     */
     @Nullable
-    ByteBuffer get(@NotNull final ByteBuffer key) {
-        final Value value = map.get(key);
-        if (value == null) {
-            return null;
+    @Override
+    public Value get(@NotNull final ByteBuffer key, final long sequence) {
+        for (Version version = map.get(key); version != null; version = version.previous) {
+            if (version.value.getSequence() <= sequence) {
+                return version.value;
+            }
         }
-        return value.getData();
+        return null;
     }
 
+    /**
+     * Upserts the value which is newer than any version of the DAO, e.g. the one of a transaction.
+     */
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value val = map.put(key.duplicate(), new Value(System.currentTimeMillis(), value.duplicate()));
-        if (val == null) {
-            currentAmountOfBytes += key.remaining() + value.remaining() + Long.BYTES;
-        } else {
-            currentAmountOfBytes += value.remaining() - val.getData().remaining();
-        }
+        put(key, new Value(Long.MAX_VALUE, value.duplicate()));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) {
-        final Value value = map.put(key.duplicate(), Value.newTombstoneValue(System.currentTimeMillis()));
-        if (value == null) {
-            currentAmountOfBytes += key.remaining() + Long.BYTES;
-        } else if (!value.isTombstone()) {
-            currentAmountOfBytes -= value.getData().remaining();
+        put(key, Value.newTombstoneValue(Long.MAX_VALUE));
+    }
+
+    /**
+     * Puts the value (possibly a tombstone) created by the caller, e.g. the one replayed from the log.
+     * The older versions of the key are dropped.
+     */
+    void put(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        put(key, value, Long.MAX_VALUE);
+    }
+
+    /**
+     * Puts the value and drops the versions of the key which no snapshot sees.
+     * @param oldestSnapshot - sequence of the oldest live snapshot, {@link Long#MAX_VALUE} if there are none.
+     */
+    void put(@NotNull final ByteBuffer key, @NotNull final Value value, final long oldestSnapshot) {
+        //the function may be retried, so the last replaced chain is the one which has been replaced
+        final Version[] replaced = new Version[1];
+        final Version chain = map.compute(key.duplicate(), (k, previous) -> {
+            replaced[0] = previous;
+            return Version.insert(previous, value, oldestSnapshot);
+        });
+        if (replaced[0] == null) {
+            amountOfKeys.increment();
+            currentAmountOfBytes.add(key.remaining());
         }
+        currentAmountOfBytes.add(chain.sizeInBytes() - (replaced[0] == null ? 0 : replaced[0].sizeInBytes()));
     }
 
     @Override
     public int size() {
-        return map.size();
+        return amountOfKeys.intValue();
     }
 
     @Override
@@ -69,5 +146,57 @@ public class MemoryTable implements Table {
 
     public void clear() {
         map.clear();
+        amountOfKeys.reset();
+        currentAmountOfBytes.reset();
+    }
+
+    /**
+     * Immutable node of the version chain, so readers walk the chain while it is being replaced.
+     */
+    private static final class Version {
+        private final Value value;
+        @Nullable
+        private final Version previous;
+
+        Version(@NotNull final Value value, @Nullable final Version previous) {
+            this.value = value;
+            this.previous = previous;
+        }
+
+        /**
+         * Returns the chain which contains the value in the order of the sequences and only the versions
+         * which some snapshot sees: the ones newer than the oldest snapshot and the newest one of the others.
+         */
+        @NotNull
+        static Version insert(@Nullable final Version chain, @NotNull final Value value, final long oldestSnapshot) {
+            //the later put of the same sequence wins, e.g. in the table of a transaction
+            if (chain == null || chain.value.getSequence() <= value.getSequence()) {
+                return new Version(value, chain == null ? null : chain.prune(value.getSequence(), oldestSnapshot));
+            }
+            //the concurrent writer with the greater sequence has put its value first
+            if (chain.value.getSequence() <= oldestSnapshot) {
+                return new Version(chain.value, null);
+            }
+            return new Version(chain.value, insert(chain.previous, value, oldestSnapshot));
+        }
+
+        /**
+         * Returns the part of the chain which is still needed below the newer version.
+         */
+        @Nullable
+        private Version prune(final long newerSequence, final long oldestSnapshot) {
+            if (newerSequence <= oldestSnapshot) {
+                return null;
+            }
+            return new Version(value, previous == null ? null : previous.prune(value.getSequence(), oldestSnapshot));
+        }
+
+        long sizeInBytes() {
+            long size = 0;
+            for (Version version = this; version != null; version = version.previous) {
+                size += Long.BYTES + (version.value.isTombstone() ? 0 : version.value.getData().remaining());
+            }
+            return size;
+        }
     }
 }
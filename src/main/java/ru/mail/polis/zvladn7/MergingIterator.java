@@ -0,0 +1,212 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * K-way merge of the sorted cell iterators of the tables which leaves the versions of every key
+ * seen by the given sequences: the newest version which isn't newer than each of them.
+ * The iterators are kept in a binary heap ordered by the current keys, then by the sequences from the newest,
+ * then by the iterators from the newest table, so the merge is stable when the sequences are equal,
+ * e.g. the timestamps of the legacy tables.
+ * The descending merge orders the keys in reverse, the versions of a key still go from the newest one.
+ * The versions of a key are taken from the heap one by one, the versions which no sequence sees
+ * are shadowed by the newer ones.
+ * The keys are compared as they are stored in the cells, without creating the read-only views of them.
+ */
+final class MergingIterator implements Iterator<Cell> {
+
+    private final Cursor[] heap;
+    //1 for the ascending merge and -1 for the descending one
+    private final int direction;
+    //the sequences which the versions are left for from the greatest one
+    private final long[] sequences;
+    private final boolean skipTombstones;
+    @Nullable
+    private final Consumer<Cell> shadowedConsumer;
+    private int size;
+    private Cell next;
+    //the key of the versions being merged and the first of the sequences which haven't seen its version yet
+    @Nullable
+    private ByteBuffer key;
+    private int unseen;
+
+    /**
+     * Creates the merge.
+     * @param newestFirst - iterators of the tables from the newest to the oldest one, every one is sorted by keys
+     *                    in the order of the merge and the versions of a key in it go from the newest one.
+     * @param descending - whether the iterators are sorted by keys in descending order.
+     * @param sequences - the sequences which see the left versions sorted in descending order,
+     *                  {@link Long#MAX_VALUE} sees the freshest version.
+     * @param skipTombstones - whether the left versions which are tombstones are skipped.
+     * @param shadowedConsumer - receives the versions which no sequence sees, it may be null.
+     */
+    MergingIterator(
+            @NotNull final List<Iterator<Cell>> newestFirst,
+            final boolean descending,
+            @NotNull final long[] sequences,
+            final boolean skipTombstones,
+            @Nullable final Consumer<Cell> shadowedConsumer) {
+        this.heap = new Cursor[newestFirst.size()];
+        this.direction = descending ? -1 : 1;
+        this.sequences = sequences;
+        this.skipTombstones = skipTombstones;
+        this.shadowedConsumer = shadowedConsumer;
+        for (int i = 0; i < newestFirst.size(); ++i) {
+            final Iterator<Cell> iter = newestFirst.get(i);
+            if (iter.hasNext()) {
+                heap[size++] = new Cursor(iter, i);
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; --i) {
+            siftDown(i);
+        }
+        next = advance();
+    }
+
+    /**
+     * Returns the live records of the merged tables as the given sequence sees them.
+     * @param newestFirst - iterators of the tables from the newest to the oldest one.
+     * @param descending - whether the iterators are sorted by keys in descending order.
+     * @param sequence - the versions newer than it are skipped, {@link Long#MAX_VALUE} sees all of them.
+     */
+    @NotNull
+    static Iterator<Record> records(
+            @NotNull final List<Iterator<Cell>> newestFirst,
+            final boolean descending,
+            final long sequence) {
+        final MergingIterator cells = new MergingIterator(newestFirst, descending, new long[]{sequence}, true, null);
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return cells.hasNext();
+            }
+
+            @Override
+            public Record next() {
+                final Cell cell = cells.next();
+                return Record.of(cell.getKey(), cell.getValue().getData());
+            }
+        };
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Cell next() {
+        if (next == null) {
+            throw new NoSuchElementException("Merged iterator has no more elements");
+        }
+        final Cell result = next;
+        next = advance();
+        return result;
+    }
+
+    @Nullable
+    private Cell advance() {
+        while (size > 0) {
+            final Cursor top = heap[0];
+            final Cell cell = top.cell;
+            final long sequence = top.sequence;
+            if (key == null || top.key.compareTo(key) != 0) {
+                key = top.key;
+                unseen = 0;
+            }
+            pop(top);
+            //the version is seen by the greatest sequence which hasn't seen a newer one, if it isn't newer
+            if (unseen == sequences.length || sequences[unseen] < sequence) {
+                if (shadowedConsumer != null) {
+                    shadowedConsumer.accept(cell);
+                }
+                continue;
+            }
+            while (unseen < sequences.length && sequences[unseen] >= sequence) {
+                ++unseen;
+            }
+            if (skipTombstones && cell.getValue().isTombstone()) {
+                continue;
+            }
+            return cell;
+        }
+        return null;
+    }
+
+    /**
+     * Moves the top cursor to its next cell or removes it from the heap if it is exhausted.
+     */
+    private void pop(@NotNull final Cursor top) {
+        if (top.advance()) {
+            siftDown(0);
+            return;
+        }
+        heap[0] = heap[--size];
+        heap[size] = null;
+        if (size > 0) {
+            siftDown(0);
+        }
+    }
+
+    private void siftDown(final int position) {
+        final Cursor cursor = heap[position];
+        int current = position;
+        while (true) {
+            int child = 2 * current + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && compare(heap[child + 1], heap[child]) < 0) {
+                ++child;
+            }
+            if (compare(cursor, heap[child]) <= 0) {
+                break;
+            }
+            heap[current] = heap[child];
+            current = child;
+        }
+        heap[current] = cursor;
+    }
+
+    private int compare(@NotNull final Cursor a, @NotNull final Cursor b) {
+        final int keys = a.key.compareTo(b.key);
+        if (keys != 0) {
+            return keys * direction;
+        }
+        final int newest = Long.compare(b.sequence, a.sequence);
+        return newest == 0 ? Integer.compare(a.source, b.source) : newest;
+    }
+
+    private static final class Cursor {
+        private final Iterator<Cell> iter;
+        //position of the table from the newest one
+        private final int source;
+        private Cell cell;
+        private ByteBuffer key;
+        private long sequence;
+
+        Cursor(@NotNull final Iterator<Cell> iter, final int source) {
+            this.iter = iter;
+            this.source = source;
+            advance();
+        }
+
+        boolean advance() {
+            if (!iter.hasNext()) {
+                return false;
+            }
+            cell = iter.next();
+            key = cell.key();
+            sequence = cell.getValue().getSequence();
+            return true;
+        }
+    }
+}
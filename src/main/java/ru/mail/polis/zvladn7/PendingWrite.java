@@ -0,0 +1,77 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.WriteBatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Batch waiting for the group commit of {@link LsmDAOImpl}.
+ * The batch is applied by the writer which commits the group, so the result is set by another thread.
+ * The result is set and checked under the commit lock of the DAO.
+ */
+final class PendingWrite {
+
+    private final WriteBatch batch;
+    private final Collection<ByteBuffer> readKeys;
+    private final long readSequence;
+    private boolean done;
+    private boolean applied;
+    @Nullable
+    private IOException error;
+
+    /**
+     * Creates the write.
+     * @param readKeys - the keys which mustn't have the versions newer than the read sequence.
+     * @param readSequence - the sequence which the keys have been read at.
+     */
+    PendingWrite(
+            @NotNull final WriteBatch batch,
+            @NotNull final Collection<ByteBuffer> readKeys,
+            final long readSequence) {
+        this.batch = batch;
+        this.readKeys = readKeys;
+        this.readSequence = readSequence;
+    }
+
+    @NotNull
+    WriteBatch getBatch() {
+        return batch;
+    }
+
+    @NotNull
+    Collection<ByteBuffer> getReadKeys() {
+        return readKeys;
+    }
+
+    long getReadSequence() {
+        return readSequence;
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    void complete(final boolean isApplied) {
+        this.applied = isApplied;
+        this.done = true;
+    }
+
+    void fail(@NotNull final IOException e) {
+        this.error = e;
+        this.done = true;
+    }
+
+    /**
+     * Returns whether the batch has been applied or throws the error of the group commit.
+     */
+    boolean getResult() throws IOException {
+        if (error != null) {
+            throw new IOException("Unable to commit the write", error);
+        }
+        return applied;
+    }
+}
@@ -0,0 +1,43 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over the records of {@link LsmDAOImpl} which holds the tables it reads,
+ * so the files replaced by a compaction aren't deleted while they are iterated.
+ * The tables are released when the iterator is exhausted or closed.
+ * The iterator which is abandoned before that holds them until it is collected by GC,
+ * so the long-living code should close the iterators it doesn't exhaust.
+ */
+public interface RecordIterator extends Iterator<Record>, AutoCloseable {
+
+    /**
+     * Releases the tables, the iterator mustn't be used after it.
+     */
+    @Override
+    void close();
+
+    @NotNull
+    static RecordIterator empty() {
+        return new RecordIterator() {
+            @Override
+            public boolean hasNext() {
+                return false;
+            }
+
+            @Override
+            public Record next() {
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public void close() {
+                //nothing to release
+            }
+        };
+    }
+}
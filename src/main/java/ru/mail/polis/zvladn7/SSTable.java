@@ -1,6 +1,7 @@
 package ru.mail.polis.zvladn7;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,41 +9,229 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SSTable implements Table {
 
     private static final Logger logger = LoggerFactory.getLogger(SSTable.class);
 
-    private final int shiftToOffsetsArray;
+    static final int BLOCK_SIZE = 4 * 1024;
+
+    static final int VERSION = 2;
+    static final long MAGIC = 0x7A766C61646E3753L;
+    static final int FOOTER_SIZE = Long.BYTES + Integer.BYTES * 3 + Long.BYTES;
+    static final int META_INDEX_ENTRY_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    //types of the sections listed in the meta index
+    static final int INDEX_SECTION = 1;
+    static final int FILTER_SECTION = 2;
+
+    private final File file;
+    private final int generation;
+    private final int level;
+    //position of the table among the tables of its level
+    private final int rank;
+    //id of the table in the block cache
+    private final long tableId;
+    @Nullable
+    private final BlockCache blockCache;
     private final int amountOfElements;
     private final FileChannel fileChannel;
+    private final MappedFile mappedFile;
+    @Nullable
+    private final Block index;
+    @Nullable
+    private final Block legacyBlock;
+    @Nullable
+    private final BloomFilter filter;
+    private final ByteBuffer minKey;
+    private final ByteBuffer maxKey;
+    //the table sets which contain the table
+    private final AtomicInteger references = new AtomicInteger();
+    //whether the table has been replaced by a compaction, so its file is deleted when it is closed
+    private volatile boolean obsolete;
 
     /**
-     * File structure.
+     * File structure (version 2).
+     * * [ data blocks ]
+     * * [ index block ]
+     * * [ Bloom filter ] (optional)
+     * * [ meta index ]
+     * * footer: meta index offset | meta index size | amount of rows | version | magic
+     * Data blocks are about {@link #BLOCK_SIZE} bytes each, see {@link Block} for their structure.
+     * The entries are sorted by keys, the versions of a key go from the newest one and are stored in one block.
+     * The index block contains a separator key, offset and size of every data block.
+     * The separator is a short key between the last key of the previous block and the first key of the block.
+     * The Bloom filter contains all the keys of the file, see {@link BloomFilter} for its structure.
+     * The meta index lists the sections of the file: amount of sections | [ type | offset | size ].
+     * Files without the magic number are the legacy ones (version 1), they are a single data block:
      * * [ rows ]
      * * [ rows offset ]
      * * amount of rows
+     * Files are written by {@link SSTableWriter}.
+     * The whole file is mapped to memory once, so reads don't make any syscalls.
+     * Data blocks read by point lookups are put to the block cache if it is given.
+     * @param file - the table file.
+     * @param generation - the generation of the table which its file is named by.
+     * @param level - the level of the table, the tables of the lower levels contain the newer data.
+     * @param tableId - the id of the table in the block cache which is never reused.
+     * @param blockCache - the cache of the data blocks or null if the blocks aren't cached.
      */
-    SSTable(@NotNull final File file) throws IOException {
+    SSTable(
+            @NotNull final File file,
+            final int generation,
+            final int level,
+            final long tableId,
+            @Nullable final BlockCache blockCache) throws IOException {
+        this(file, generation, level, generation, tableId, blockCache, null, null);
+    }
+
+    /**
+     * Opens the table which key range is known, e.g. from the {@link Manifest}, so its edge blocks aren't read.
+     * @param rank - the position of the table among the tables of its level, the newer tables have the greater ranks.
+     *             It is the generation of the table unless the table is the level 0 result of a compaction,
+     *             which takes the rank of the newest merged table.
+     * @param minKey - the min key of the table or null if it is read from the file.
+     * @param maxKey - the max key of the table or null if it is read from the file.
+     */
+    SSTable(
+            @NotNull final File file,
+            final int generation,
+            final int level,
+            final int rank,
+            final long tableId,
+            @Nullable final BlockCache blockCache,
+            @Nullable final ByteBuffer minKey,
+            @Nullable final ByteBuffer maxKey) throws IOException {
+        this.file = file;
+        this.generation = generation;
+        this.level = level;
+        this.rank = rank;
+        this.tableId = tableId;
+        this.blockCache = blockCache;
         fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
-        final int fileSize = (int) fileChannel.size();
+        mappedFile = new MappedFile(fileChannel);
+        final long fileSize = mappedFile.size();
+
+        if (fileSize >= FOOTER_SIZE && mappedFile.getLong(fileSize - Long.BYTES) == MAGIC) {
+            final long footerOffset = fileSize - FOOTER_SIZE;
+            final int version = mappedFile.getInt(footerOffset + Long.BYTES + Integer.BYTES * 2);
+            if (version != VERSION) {
+                fileChannel.close();
+                throw new IOException("Unsupported SSTable version " + version + ": " + file);
+            }
+            final long metaIndexOffset = mappedFile.getLong(footerOffset);
+            final int metaIndexSize = mappedFile.getInt(footerOffset + Long.BYTES);
+            amountOfElements = mappedFile.getInt(footerOffset + Long.BYTES + Integer.BYTES);
+            final ByteBuffer indexSection = readSection(metaIndexOffset, metaIndexSize, INDEX_SECTION);
+            if (indexSection == null) {
+                fileChannel.close();
+                throw new IOException("SSTable doesn't contain the index: " + file);
+            }
+            index = new Block(indexSection);
+            legacyBlock = null;
+            final ByteBuffer filterSection = readSection(metaIndexOffset, metaIndexSize, FILTER_SECTION);
+            filter = filterSection == null ? null : new BloomFilter(filterSection);
+        } else {
+            //get amount
+            amountOfElements = mappedFile.getInt(fileSize - Integer.BYTES);
+            index = null;
+            legacyBlock = new Block(mappedFile.slice(0, (int) fileSize));
+            filter = null;
+        }
+
+        if (minKey != null && maxKey != null) {
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+        } else if (amountOfElements == 0) {
+            this.minKey = ByteBuffer.allocate(0);
+            this.maxKey = this.minKey;
+        } else {
+            this.minKey = readBlock(0).keyAt(0);
+            final Block lastBlock = readBlock(amountOfBlocks() - 1);
+            this.maxKey = lastBlock.keyAt(lastBlock.size() - 1);
+        }
+    }
+
+    @NotNull
+    File getFile() {
+        return file;
+    }
+
+    long sizeInBytes() {
+        return mappedFile.size();
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    int getRank() {
+        return rank;
+    }
+
+    @NotNull
+    ByteBuffer getMinKey() {
+        return minKey.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    ByteBuffer getMaxKey() {
+        return maxKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the separator keys of the data blocks except the first one.
+     * Every key starts about {@link #BLOCK_SIZE} bytes of the data, so they split the table into the equal parts.
+     */
+    @NotNull
+    List<ByteBuffer> sampleKeys() {
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        final List<ByteBuffer> keys = new ArrayList<>(index.size() - 1);
+        for (int i = 1; i < index.size(); ++i) {
+            keys.add(index.keyAt(i));
+        }
+        return keys;
+    }
 
-        //get amount
-        final ByteBuffer offsetBuf = ByteBuffer.allocate(Integer.BYTES);
-        fileChannel.read(offsetBuf, fileSize - Integer.BYTES);
-        amountOfElements = offsetBuf.flip().getInt();
+    /**
+     * Returns whether the key is between the min and max keys of the table.
+     */
+    boolean covers(@NotNull final ByteBuffer key) {
+        return amountOfElements != 0 && minKey.compareTo(key) <= 0 && maxKey.compareTo(key) >= 0;
+    }
 
-        shiftToOffsetsArray = fileSize - Integer.BYTES * (1 + amountOfElements);
+    /**
+     * Returns whether the table may contain keys from the given one (inclusive) until the bound (exclusive).
+     * @param to - the bound, null means there is no bound.
+     */
+    boolean overlapsRange(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return amountOfElements != 0 && maxKey.compareTo(from) >= 0 && (to == null || minKey.compareTo(to) < 0);
     }
 
     @NotNull
     @Override
-    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
-        return new SSTableIter(from);
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return new SSTableIter(from, to);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return new DescendingSSTableIter(from, to);
     }
 
     @Override
@@ -60,145 +249,299 @@ public class SSTable implements Table {
         return amountOfElements;
     }
 
-    static void serialize(final File file, final Iterator<Cell> elementsIter) throws IOException {
-        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
-
-            final List<Integer> offsets = new ArrayList<>();
-            int offset = 0;
-
-            while (elementsIter.hasNext()) {
-                final Cell cell = elementsIter.next();
-                final ByteBuffer key = cell.getKey();
-                final Value value = cell.getValue();
-                final int keySize = key.remaining();
-
-                offsets.add(offset);
-                offset += keySize + Integer.BYTES * 2 + Long.BYTES;
-
-                //write key size
-                fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(keySize).flip());
-                //write key
-                fileChannel.write(key);
-                //write timestamp
-                fileChannel.write(ByteBuffer.allocate(Long.BYTES).putLong(value.getTimestamp()).flip());
-
-                if (value.isTombstone()) {
-                    fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(-1).flip());
-                } else {
-                    final ByteBuffer valueBuffer = value.getData();
-                    final int valueSize = valueBuffer.remaining();
-                    fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(valueSize).flip());
-                    fileChannel.write(valueBuffer);
-                    offset += valueSize;
-                }
-            }
+    /**
+     * Returns whether the table has a Bloom filter, the legacy tables and the ones written without it don't.
+     */
+    boolean hasFilter() {
+        return filter != null;
+    }
 
-            for (final Integer i : offsets) {
-                fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(i).flip());
+    /**
+     * Returns false if the table definitely doesn't contain the key which {@link BloomFilter#hash} is given.
+     * Tables without a Bloom filter might contain any key.
+     */
+    boolean mightContain(final long keyHash) {
+        return filter == null || filter.mightContain(keyHash);
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key, final long sequence) {
+        if (amountOfElements == 0) {
+            return null;
+        }
+        //the versions of a key are never split between the blocks
+        final Block block = dataBlock(blockNumberFor(key), true);
+        for (int position = block.lowerBound(key);
+                position < block.size() && block.compareKeyAt(position, key) == 0;
+                ++position) {
+            if (block.sequenceAt(position) <= sequence) {
+                return block.valueAt(position);
             }
-            fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(offsets.size()).flip());
         }
+        return null;
     }
 
-    private int getOffset(final int position) throws IOException {
-        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
-        fileChannel.read(buffer,shiftToOffsetsArray + position * Integer.BYTES);
-        return buffer.flip().getInt();
+    @Nullable
+    private ByteBuffer readSection(final long metaIndexOffset, final int metaIndexSize, final int type) {
+        final ByteBuffer metaIndex = mappedFile.slice(metaIndexOffset, metaIndexSize);
+        final int amountOfSections = metaIndex.getInt(0);
+        for (int i = 0; i < amountOfSections; ++i) {
+            final int entryOffset = Integer.BYTES + i * META_INDEX_ENTRY_SIZE;
+            if (metaIndex.getInt(entryOffset) == type) {
+                final long offset = metaIndex.getLong(entryOffset + Integer.BYTES);
+                final int size = metaIndex.getInt(entryOffset + Integer.BYTES + Long.BYTES);
+                return mappedFile.slice(offset, size);
+            }
+        }
+        return null;
     }
 
-    private ByteBuffer getKey(final int position) throws IOException {
-        final int keyLengthOffset = getOffset(position);
-
-        final ByteBuffer keySizeBuf = ByteBuffer.allocate(Integer.BYTES);
-        fileChannel.read(keySizeBuf, keyLengthOffset);
+    private int amountOfBlocks() {
+        return index == null ? 1 : index.size();
+    }
 
-        final ByteBuffer keyBuf = ByteBuffer.allocate(keySizeBuf.flip().getInt());
-        fileChannel.read(keyBuf,keyLengthOffset + Integer.BYTES);
+    /**
+     * Returns the data block from the cache or from the mapped file.
+     * @param fillCache - whether the block read from the file should be put to the cache.
+     *                  Scans don't fill the cache to not evict the blocks used by point lookups.
+     */
+    @NotNull
+    private Block dataBlock(final int blockNumber, final boolean fillCache) {
+        if (index == null) {
+            return legacyBlock;
+        }
+        final int handleOffset = index.payloadOffset(blockNumber);
+        final long blockOffset = index.getLong(handleOffset);
+        if (blockCache != null) {
+            final Block cached = blockCache.get(tableId, blockOffset);
+            if (cached != null) {
+                return cached;
+            }
+        }
 
-        return keyBuf.flip();
+        final ByteBuffer block = mappedFile.slice(blockOffset, index.getInt(handleOffset + Long.BYTES));
+        if (blockCache != null && fillCache) {
+            return blockCache.put(tableId, blockOffset, block);
+        }
+        return new Block(block);
     }
 
-    private int getElementPosition(final ByteBuffer key) throws IOException {
-        int left = 0;
-        int right = amountOfElements - 1;
-        while (left <= right) {
-            final int mid = (left + right) / 2;
-            final ByteBuffer midKey = getKey(mid);
-            final int compareResult = midKey.compareTo(key);
-
-            if (compareResult < 0) {
-                left = mid + 1;
-            } else if (compareResult > 0) {
-                right = mid - 1;
-            } else {
-                return mid;
-            }
+    /**
+     * Returns the data block from the mapped file bypassing the cache.
+     */
+    @NotNull
+    private Block readBlock(final int blockNumber) {
+        if (index == null) {
+            return legacyBlock;
         }
+        final int handleOffset = index.payloadOffset(blockNumber);
+        return new Block(mappedFile.slice(index.getLong(handleOffset), index.getInt(handleOffset + Long.BYTES)));
+    }
 
-        return left;
+    /**
+     * Returns the number of the only data block which may contain the key.
+     */
+    private int blockNumberFor(@NotNull final ByteBuffer key) {
+        if (index == null) {
+            return 0;
+        }
+        final int position = index.lowerBound(key);
+        if (position < index.size() && index.compareKeyAt(position, key) == 0) {
+            return position;
+        }
+        return Math.max(position - 1, 0);
     }
 
     /**
-     * Cell(a row of file) structure.
-     * key size | key | timestamp | value size | value
-     * if value size is 0 than value is absent
+     * Iterates the cells from the given key until the bound.
+     * The bound is checked by the keys of the blocks in the index before the blocks are read,
+     * so the iterator doesn't read the block which follows the range.
      */
-    private Cell get(final int position) throws IOException {
-        int elementOffset = getOffset(position);
+    class SSTableIter implements Iterator<Cell> {
 
-        final ByteBuffer key = getKey(position);
+        @Nullable
+        private final ByteBuffer to;
+        private int blockNumber;
+        private Block block;
+        private int position;
 
-        elementOffset += Integer.BYTES + key.remaining();
-        final ByteBuffer timestampBuf = ByteBuffer.allocate(Long.BYTES);
-        fileChannel.read(timestampBuf, elementOffset);
+        public SSTableIter(final ByteBuffer from, @Nullable final ByteBuffer to) {
+            this.to = to;
+            if (!overlapsRange(from.rewind(), to)) {
+                blockNumber = amountOfBlocks();
+                return;
+            }
+            blockNumber = blockNumberFor(from);
+            block = dataBlock(blockNumber, false);
+            position = block.lowerBound(from);
+            skipFinishedBlock();
+            checkBound();
+        }
 
-        final ByteBuffer valueSizeBuf = ByteBuffer.allocate(Integer.BYTES);
-        fileChannel.read(valueSizeBuf, elementOffset + Long.BYTES);
-        final int valueSize = valueSizeBuf.flip().getInt();
+        @Override
+        public boolean hasNext() {
+            return blockNumber < amountOfBlocks();
+        }
 
-        final Value value;
-        if (valueSize == -1) {
-            value = Value.newTombstoneValue(timestampBuf.flip().getLong());
-        } else {
-            final ByteBuffer valueBuf = ByteBuffer.allocate(valueSize);
-            fileChannel.read(valueBuf, elementOffset + Long.BYTES + Integer.BYTES);
-            valueBuf.flip();
-            value = new Value(timestampBuf.flip().getLong(), valueBuf);
+        @Override
+        public Cell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("SSTable's iterator has no more elements");
+            }
+            final Cell cell = block.cellAt(position++);
+            skipFinishedBlock();
+            checkBound();
+            return cell;
+        }
+
+        private void skipFinishedBlock() {
+            while (position == block.size()) {
+                ++blockNumber;
+                position = 0;
+                if (!hasNext()) {
+                    return;
+                }
+                //the separator of the block in the index isn't greater than its first key
+                if (to != null && index.compareKeyAt(blockNumber, to) >= 0) {
+                    blockNumber = amountOfBlocks();
+                    return;
+                }
+                block = dataBlock(blockNumber, false);
+            }
         }
 
-        return new Cell(key, value);
+        private void checkBound() {
+            if (to != null && hasNext() && block.compareKeyAt(position, to) >= 0) {
+                blockNumber = amountOfBlocks();
+            }
+        }
     }
 
-    class SSTableIter implements Iterator<Cell> {
+    /**
+     * Iterates the cells from the last key before the bound down to the given key.
+     * The versions of every key still go from the newest one, so the iterator walks the versions forward
+     * and then jumps to the first version of the previous key.
+     * The blocks are read from the last one, which may contain the bound, to the first one.
+     * The start key is checked by the keys of the blocks in the index before the blocks are read,
+     * so the iterator doesn't read the block which precedes the range.
+     */
+    class DescendingSSTableIter implements Iterator<Cell> {
 
+        private final ByteBuffer from;
+        private int blockNumber;
+        private Block block;
         private int position;
-
-        public SSTableIter(final ByteBuffer from) {
-            try {
-                position = getElementPosition(from.rewind());
-            } catch (IOException e) {
-                logger.info("SSTable's iterator cannot correctly get 'from' position", e);
+        //positions of the newest and the oldest versions of the current key
+        private int firstVersion;
+        private int lastVersion;
+
+        public DescendingSSTableIter(final ByteBuffer from, @Nullable final ByteBuffer to) {
+            this.from = from;
+            if (!overlapsRange(from.rewind(), to)) {
+                blockNumber = -1;
+                return;
             }
+            blockNumber = to == null ? amountOfBlocks() - 1 : blockNumberFor(to.rewind());
+            block = dataBlock(blockNumber, false);
+            position = (to == null ? block.size() : block.lowerBound(to)) - 1;
+            startKey();
         }
 
         @Override
         public boolean hasNext() {
-            return position < amountOfElements;
+            return blockNumber >= 0;
         }
 
         @Override
         public Cell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("SSTable's iterator has no more elements");
+            }
+            final Cell cell = block.cellAt(position);
+            if (position < lastVersion) {
+                ++position;
+            } else {
+                position = firstVersion - 1;
+                startKey();
+            }
+            return cell;
+        }
+
+        /**
+         * Moves from the oldest version of the key at the position to its newest version.
+         */
+        private void startKey() {
+            skipFinishedBlock();
+            if (!hasNext()) {
+                return;
+            }
+            lastVersion = position;
+            final ByteBuffer key = block.keyAt(position);
+            while (position > 0 && block.compareKeyAt(position - 1, key) == 0) {
+                --position;
+            }
+            firstVersion = position;
+            checkBound();
+        }
+
+        private void skipFinishedBlock() {
+            while (position < 0) {
+                //the keys of the previous block are less than the separator of this one in the index
+                if (blockNumber == 0 || index.compareKeyAt(blockNumber, from) <= 0) {
+                    blockNumber = -1;
+                    return;
+                }
+                --blockNumber;
+                block = dataBlock(blockNumber, false);
+                position = block.size() - 1;
+            }
+        }
+
+        private void checkBound() {
+            if (hasNext() && block.compareKeyAt(position, from) < 0) {
+                blockNumber = -1;
+            }
+        }
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Closes the table when the last table set which contains it is released.
+     */
+    void release() {
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+        close();
+        if (obsolete) {
             try {
-                return get(position++);
+                Files.deleteIfExists(file.toPath());
             } catch (IOException e) {
-                logger.info("SSTable's iterator cannot get a cell because it has no more elements", e);
-                throw new RuntimeException(e);
+                logger.warn("Unable to delete file: " + file.getName(), e);
             }
         }
     }
 
+    /**
+     * Marks the table replaced by a compaction, its file is deleted when the table is released.
+     */
+    void markObsolete() {
+        obsolete = true;
+    }
+
+    /**
+     * Closes the file channel and drops the cached blocks of the table.
+     * The mapping itself is released by GC when the last slice of it becomes unreachable.
+     */
     @Override
     public void close() {
+        if (blockCache != null) {
+            blockCache.invalidate(tableId);
+        }
         try {
             fileChannel.close();
         } catch (IOException e) {
@@ -0,0 +1,264 @@
+package ru.mail.polis.zvladn7;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * Writes SSTables in the format described in {@link SSTable}.
+ * Cells are encoded right into a large direct buffer which is written to the file when it is full,
+ * so a table is written by a few big sequential writes.
+ * The writer isn't thread-safe, but it may be reused for writing one table after another.
+ */
+final class SSTableWriter {
+
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final ByteBuffer EMPTY_KEY = ByteBuffer.allocate(0);
+
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final IntArray entryOffsets = new IntArray(SSTable.BLOCK_SIZE / Integer.BYTES);
+    private final BlockBuilder indexBlock = new BlockBuilder();
+    private final int bitsPerKey;
+    private final WriteStats stats;
+    @Nullable
+    private final IoRateLimiter rateLimiter;
+    private final boolean background;
+
+    private FileChannel fileChannel;
+    //amount of bytes written to the file channel, so position in file is it plus buffer position
+    private long flushedBytes;
+    private long blockOffset;
+
+    /**
+     * Creates the writer.
+     * @param bitsPerKey - size of the Bloom filter per key, 0 means the tables won't have the filter.
+     * @param stats - counters which every written table is recorded to.
+     * @param rateLimiter - limiter of the writes or null if they aren't limited.
+     * @param background - whether the tables are written by compactions, which wait for the foreground reads.
+     */
+    SSTableWriter(
+            final int bitsPerKey,
+            @NotNull final WriteStats stats,
+            @Nullable final IoRateLimiter rateLimiter,
+            final boolean background) {
+        this.bitsPerKey = bitsPerKey;
+        this.stats = stats;
+        this.rateLimiter = rateLimiter;
+        this.background = background;
+    }
+
+    /**
+     * Writes the cells to the file.
+     * @param file - destination file, it is created or truncated.
+     * @param elementsIter - cells sorted by key, the versions of a key go from the newest one.
+     * @param expectedKeys - upper bound of amount of cells, it is used to size the Bloom filter.
+     */
+    void write(
+            @NotNull final File file,
+            @NotNull final Iterator<Cell> elementsIter,
+            final int expectedKeys) throws IOException {
+        write(file, Iterators.peekingIterator(elementsIter), expectedKeys, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes the cells to the file until the data blocks reach the given size.
+     * The rest of the cells are left in the iterator, so they may be written to the next table.
+     * The versions of a key are never split between the blocks or the tables: the iterator is peeked
+     * to finish them at the first version of the next key.
+     * @param file - destination file, it is created or truncated.
+     * @param elementsIter - cells sorted by key, the versions of a key go from the newest one.
+     * @param expectedKeys - upper bound of amount of cells, it is used to size the Bloom filter.
+     * @param maxBytes - size of the data blocks after which the table is finished.
+     */
+    void write(
+            @NotNull final File file,
+            @NotNull final PeekingIterator<Cell> elementsIter,
+            final int expectedKeys,
+            final long maxBytes) throws IOException {
+        final long startTime = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            fileChannel = channel;
+            flushedBytes = 0;
+            blockOffset = 0;
+            writeBuffer.clear();
+            entryOffsets.clear();
+            indexBlock.reset();
+
+            final int amount = writeCells(elementsIter, expectedKeys, maxBytes);
+            flushBuffer();
+            channel.force(false);
+            stats.recordTable(amount, flushedBytes, System.nanoTime() - startTime);
+        } finally {
+            fileChannel = null;
+        }
+    }
+
+    private int writeCells(
+            @NotNull final PeekingIterator<Cell> elementsIter,
+            final int expectedKeys,
+            final long maxBytes) throws IOException {
+        final BloomFilter bloomFilter = bitsPerKey == 0 ? null : BloomFilter.create(expectedKeys, bitsPerKey);
+        ByteBuffer separator = null;
+        ByteBuffer lastKey = null;
+        int amount = 0;
+
+        while (elementsIter.hasNext()) {
+            final Cell cell = elementsIter.next();
+            final ByteBuffer key = cell.getKey();
+            if (entryOffsets.isEmpty()) {
+                separator = lastKey == null ? EMPTY_KEY : shortestSeparator(lastKey, key);
+            }
+            lastKey = key;
+            writeCell(key, cell.getValue());
+            if (bloomFilter != null) {
+                bloomFilter.add(key);
+            }
+            ++amount;
+
+            if (position() - blockOffset + Integer.BYTES * (entryOffsets.size() + 1) >= SSTable.BLOCK_SIZE
+                    && !(elementsIter.hasNext() && elementsIter.peek().key().equals(key))) {
+                finishBlock(separator);
+                if (position() >= maxBytes) {
+                    break;
+                }
+            }
+        }
+        if (!entryOffsets.isEmpty()) {
+            finishBlock(separator);
+        }
+
+        final long indexOffset = position();
+        final ByteBuffer index = indexBlock.build();
+        final int indexSize = index.remaining();
+        put(index);
+
+        final ByteBuffer metaIndex = ByteBuffer.allocate(Integer.BYTES + SSTable.META_INDEX_ENTRY_SIZE * 2)
+                .putInt(bloomFilter == null ? 1 : 2)
+                .putInt(SSTable.INDEX_SECTION)
+                .putLong(indexOffset)
+                .putInt(indexSize);
+        if (bloomFilter != null) {
+            final long filterOffset = position();
+            final ByteBuffer filterBuffer = bloomFilter.serialized();
+            metaIndex.putInt(SSTable.FILTER_SECTION)
+                    .putLong(filterOffset)
+                    .putInt(filterBuffer.remaining());
+            put(filterBuffer);
+        }
+
+        final long metaIndexOffset = position();
+        put(metaIndex.flip());
+
+        ensureSpace(SSTable.FOOTER_SIZE);
+        writeBuffer.putLong(metaIndexOffset)
+                .putInt(metaIndex.limit())
+                .putInt(amount)
+                .putInt(SSTable.VERSION)
+                .putLong(SSTable.MAGIC);
+        return amount;
+    }
+
+    /**
+     * Data block entry structure is described in {@link Block#cellAt(int)}.
+     */
+    private void writeCell(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        entryOffsets.add((int) (position() - blockOffset));
+
+        ensureSpace(Integer.BYTES);
+        writeBuffer.putInt(key.remaining());
+        put(key);
+        ensureSpace(Long.BYTES + Integer.BYTES);
+        writeBuffer.putLong(value.getSequence());
+        if (value.isTombstone()) {
+            writeBuffer.putInt(-1);
+        } else {
+            final ByteBuffer data = value.getData();
+            writeBuffer.putInt(data.remaining());
+            put(data);
+        }
+    }
+
+    /**
+     * Returns the shortest prefix of the key which is still greater than the previous key.
+     * The index stores it instead of the first key of the block, so huge keys don't bloat the index.
+     */
+    @NotNull
+    private static ByteBuffer shortestSeparator(@NotNull final ByteBuffer previous, @NotNull final ByteBuffer key) {
+        final int length = Math.min(previous.remaining(), key.remaining());
+        int prefix = 0;
+        while (prefix < length && previous.get(previous.position() + prefix) == key.get(key.position() + prefix)) {
+            ++prefix;
+        }
+        final ByteBuffer separator = key.duplicate();
+        separator.limit(separator.position() + Math.min(prefix + 1, key.remaining()));
+        return separator;
+    }
+
+    private void finishBlock(@NotNull final ByteBuffer separator) throws IOException {
+        for (int i = 0; i < entryOffsets.size(); ++i) {
+            ensureSpace(Integer.BYTES);
+            writeBuffer.putInt(entryOffsets.get(i));
+        }
+        ensureSpace(Integer.BYTES);
+        writeBuffer.putInt(entryOffsets.size());
+
+        final long blockEnd = position();
+        indexBlock.addBlockHandle(separator, blockOffset, (int) (blockEnd - blockOffset));
+        blockOffset = blockEnd;
+        entryOffsets.clear();
+    }
+
+    private long position() {
+        return flushedBytes + writeBuffer.position();
+    }
+
+    /**
+     * Copies the source to the write buffer. Sources which don't fit into the empty buffer are written directly.
+     */
+    private void put(@NotNull final ByteBuffer source) throws IOException {
+        final ByteBuffer src = source.duplicate();
+        if (src.remaining() > writeBuffer.remaining()) {
+            flushBuffer();
+            if (src.remaining() > writeBuffer.capacity()) {
+                flushedBytes += src.remaining();
+                writeFully(src);
+                return;
+            }
+        }
+        writeBuffer.put(src);
+    }
+
+    private void ensureSpace(final int bytes) throws IOException {
+        if (writeBuffer.remaining() < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        flushedBytes += writeBuffer.remaining();
+        writeFully(writeBuffer);
+        writeBuffer.clear();
+    }
+
+    private void writeFully(@NotNull final ByteBuffer buffer) throws IOException {
+        if (rateLimiter != null) {
+            rateLimiter.acquire(buffer.remaining(), background);
+        }
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+    }
+}
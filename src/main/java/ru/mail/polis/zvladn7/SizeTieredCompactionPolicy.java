@@ -0,0 +1,127 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Size-tiered compaction.
+ * The flushed tables are grouped into buckets of about the same size, and a bucket is merged into one table
+ * when it has enough members. The result goes to the bucket of the bigger tables, so every cell is rewritten
+ * about log(data size / flush size) times, which is less than the leveled compaction does.
+ * The price is the amount of tables a lookup probes and the space taken by the stale versions.
+ * All the tables stay in level 0, where they are ordered from the oldest to the newest.
+ * So a bucket is a contiguous run of the tables, which the result replaces without reordering the data.
+ * The tables of the deeper levels are left by another policy, they are merged by {@link LsmDAOImpl#compact()} only.
+ */
+public final class SizeTieredCompactionPolicy implements CompactionPolicy {
+
+    public static final int DEFAULT_MIN_THRESHOLD = 4;
+    public static final int DEFAULT_MAX_THRESHOLD = 32;
+    public static final double DEFAULT_BUCKET_LOW = 0.5;
+    public static final double DEFAULT_BUCKET_HIGH = 1.5;
+    public static final long DEFAULT_MIN_TABLE_SIZE = 1024 * 1024;
+
+    private final int minThreshold;
+    private final int maxThreshold;
+    private final double bucketLow;
+    private final double bucketHigh;
+    private final long minTableSize;
+
+    public SizeTieredCompactionPolicy() {
+        this(DEFAULT_MIN_THRESHOLD, DEFAULT_MAX_THRESHOLD, DEFAULT_BUCKET_LOW, DEFAULT_BUCKET_HIGH,
+                DEFAULT_MIN_TABLE_SIZE);
+    }
+
+    /**
+     * Creates the policy.
+     * @param minThreshold - amount of tables in a bucket which triggers their compaction.
+     * @param maxThreshold - max amount of tables merged by one compaction.
+     * @param bucketLow - a table belongs to the bucket if its size is not less than the average one multiplied by it.
+     * @param bucketHigh - a table belongs to the bucket if its size is not greater than the average one
+     *                   multiplied by it.
+     * @param minTableSize - all the tables smaller than it belong to the same bucket.
+     */
+    public SizeTieredCompactionPolicy(
+            final int minThreshold,
+            final int maxThreshold,
+            final double bucketLow,
+            final double bucketHigh,
+            final long minTableSize) {
+        if (minThreshold < 2 || maxThreshold < minThreshold
+                || bucketLow <= 0 || bucketLow > 1 || bucketHigh < 1 || minTableSize < 0) {
+            throw new IllegalArgumentException("Invalid size-tiered compaction parameters");
+        }
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+        this.bucketLow = bucketLow;
+        this.bucketHigh = bucketHigh;
+        this.minTableSize = minTableSize;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pickCompaction(@NotNull final List<TableInfo> tables) {
+        List<TableInfo> picked = null;
+        long pickedAverage = Long.MAX_VALUE;
+        for (final List<TableInfo> bucket : buckets(tables)) {
+            if (bucket.size() < minThreshold) {
+                continue;
+            }
+            //the smallest tables are merged first, it is cheap and reduces the amount of tables the most
+            final long average = sizeOf(bucket) / bucket.size();
+            if (average < pickedAverage) {
+                picked = bucket;
+                pickedAverage = average;
+            }
+        }
+        if (picked == null) {
+            return null;
+        }
+        //the oldest tables of the bucket, so the newer ones may join the result later
+        return new Compaction(picked.subList(0, Math.min(picked.size(), maxThreshold)), 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Splits the level 0 tables from the oldest to the newest into the contiguous runs of the similar sizes.
+     */
+    @NotNull
+    private List<List<TableInfo>> buckets(@NotNull final List<TableInfo> tables) {
+        final List<List<TableInfo>> buckets = new ArrayList<>();
+        List<TableInfo> bucket = new ArrayList<>();
+        long bucketSize = 0;
+        for (final TableInfo table : tables) {
+            if (table.getLevel() != 0) {
+                continue;
+            }
+            if (!bucket.isEmpty() && !fits(table.getSizeInBytes(), bucketSize / bucket.size())) {
+                buckets.add(bucket);
+                bucket = new ArrayList<>();
+                bucketSize = 0;
+            }
+            bucket.add(table);
+            bucketSize += table.getSizeInBytes();
+        }
+        if (!bucket.isEmpty()) {
+            buckets.add(bucket);
+        }
+        return buckets;
+    }
+
+    private boolean fits(final long size, final long average) {
+        if (size < minTableSize && average < minTableSize) {
+            return true;
+        }
+        return size >= average * bucketLow && size <= average * bucketHigh;
+    }
+
+    private static long sizeOf(@NotNull final List<TableInfo> tables) {
+        long size = 0;
+        for (final TableInfo table : tables) {
+            size += table.getSizeInBytes();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,82 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Snapshot;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * Snapshot of {@link LsmDAOImpl} which reads the versions not newer than its sequence.
+ * The DAO keeps such versions while the snapshot is registered in it.
+ * The snapshot which isn't closed is unregistered when it becomes unreachable,
+ * but its iterators must not be used after it is closed.
+ */
+final class SnapshotImpl implements Snapshot {
+
+    private final LsmDAOImpl dao;
+    private final long sequence;
+    private final Cleaner.Cleanable cleanable;
+    private volatile boolean closed;
+
+    /**
+     * Creates the snapshot registered in the DAO.
+     * @param sequence - the last sequence of the writes which the snapshot sees.
+     */
+    SnapshotImpl(@NotNull final LsmDAOImpl dao, final long sequence) {
+        this.dao = dao;
+        this.sequence = sequence;
+        //the action mustn't refer to the snapshot, otherwise it never becomes unreachable
+        this.cleanable = TableSet.CLEANER.register(this, () -> dao.releaseSnapshot(sequence));
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    @NotNull
+    @Override
+    public RecordIterator range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return records(from, to, false);
+    }
+
+    @NotNull
+    @Override
+    public RecordIterator descendingRange(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return records(from, to, true);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+        checkNotClosed();
+        return dao.get(key, sequence);
+    }
+
+    @NotNull
+    private RecordIterator records(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final boolean descending) {
+        checkNotClosed();
+        if (to != null && from.compareTo(to) >= 0) {
+            return RecordIterator.empty();
+        }
+        return dao.records(from, to, descending, null, sequence);
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("The snapshot is closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        //runs the release at most once
+        cleanable.clean();
+    }
+}
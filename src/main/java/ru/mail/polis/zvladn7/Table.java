@@ -1,6 +1,7 @@
 package ru.mail.polis.zvladn7;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -9,7 +10,45 @@ import java.util.Iterator;
 public interface Table {
 
     @NotNull
-    Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
+    default Iterator<Cell> iterator(@NotNull ByteBuffer from) {
+        return iterator(from, null);
+    }
+
+    /**
+     * Provides the cells from the given key (inclusive) until the bound (exclusive) in ascending order.
+     * The versions of a key go from the newest to the oldest one.
+     * @param to - the bound, null means there is no bound.
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to);
+
+    /**
+     * Provides the same cells as {@link #iterator(ByteBuffer, ByteBuffer)} does, but the keys go in descending order.
+     * The versions of a key still go from the newest to the oldest one.
+     * @param to - the bound, null means there is no bound.
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to);
+
+    @NotNull
+    default Iterator<Cell> iterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to, boolean descending) {
+        return descending ? descendingIterator(from, to) : iterator(from, to);
+    }
+
+    /**
+     * Returns the newest value (possibly a tombstone) stored by exactly the given key or null if there is no such key.
+     */
+    @Nullable
+    default Value get(@NotNull ByteBuffer key) {
+        return get(key, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the newest value of the key which sequence isn't greater than the given one
+     * or null if there is no such value.
+     */
+    @Nullable
+    Value get(@NotNull ByteBuffer key, long sequence);
 
     void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value) throws IOException;
 
@@ -0,0 +1,33 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Merges all the tables into one when there are too many of them,
+ * so a point lookup never probes more than the given amount of tables.
+ * Every compaction rewrites the whole data, so it suits small data sets only.
+ */
+public final class TableCountCompactionPolicy implements CompactionPolicy {
+
+    private final int maxTables;
+
+    /**
+     * Creates the policy.
+     * @param maxTables - amount of tables which doesn't trigger the compaction yet, at least 1.
+     */
+    public TableCountCompactionPolicy(final int maxTables) {
+        if (maxTables < 1) {
+            throw new IllegalArgumentException("Amount of tables must be positive: " + maxTables);
+        }
+        this.maxTables = maxTables;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pickCompaction(@NotNull final List<TableInfo> tables) {
+        return tables.size() > maxTables ? fullCompaction(tables) : null;
+    }
+}
@@ -0,0 +1,98 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Description of an SSTable which is given to the {@link CompactionPolicy}.
+ */
+public final class TableInfo {
+
+    private final int generation;
+    private final int level;
+    private final long sizeInBytes;
+    private final int amountOfEntries;
+    private final ByteBuffer minKey;
+    private final ByteBuffer maxKey;
+
+    TableInfo(@NotNull final SSTable table) {
+        this(table.getGeneration(), table.getLevel(), table.sizeInBytes(), table.size(),
+                table.getMinKey(), table.getMaxKey());
+    }
+
+    /**
+     * Describes the table which isn't opened, e.g. in the tests of the policies.
+     */
+    TableInfo(
+            final int generation,
+            final int level,
+            final long sizeInBytes,
+            final int amountOfEntries,
+            @NotNull final ByteBuffer minKey,
+            @NotNull final ByteBuffer maxKey) {
+        this.generation = generation;
+        this.level = level;
+        this.sizeInBytes = sizeInBytes;
+        this.amountOfEntries = amountOfEntries;
+        this.minKey = minKey;
+        this.maxKey = maxKey;
+    }
+
+    /**
+     * Returns the generation which identifies the table.
+     * The order of the tables is given by the list passed to the policy, not by the generations:
+     * the level 0 result of a compaction keeps the place of the merged tables, but gets a new generation.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns the level of the table. Level 0 contains the flushed tables which may overlap,
+     * every deeper level contains the older data than the levels above it.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public int getAmountOfEntries() {
+        return amountOfEntries;
+    }
+
+    @NotNull
+    public ByteBuffer getMinKey() {
+        return minKey.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    public ByteBuffer getMaxKey() {
+        return maxKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns whether the key ranges of the tables intersect. Empty tables don't overlap anything.
+     */
+    public boolean overlaps(@NotNull final TableInfo other) {
+        return other.amountOfEntries != 0 && overlaps(other.minKey, other.maxKey);
+    }
+
+    /**
+     * Returns whether the table may contain keys of the range.
+     * @param from - the first key of the range, inclusive.
+     * @param to - the last key of the range, inclusive.
+     */
+    public boolean overlaps(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+        return amountOfEntries != 0 && minKey.compareTo(to) <= 0 && from.compareTo(maxKey) <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TableInfo{generation=" + generation + ", level=" + level
+                + ", size=" + sizeInBytes + ", entries=" + amountOfEntries + '}';
+    }
+}
@@ -0,0 +1,179 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable set of the tables of the DAO: the memory table, the immutable memory tables and SSTables.
+ * Flushes and compactions don't change the set, they publish a new one, so readers take the current set
+ * without the lock and read it while the tables are being replaced.
+ * The set is reference-counted: the DAO holds a reference to the current set and every reader holds one
+ * while it reads. The set holds a reference to each of its SSTables, so a replaced table is closed
+ * when the last set which contains it is released.
+ */
+final class TableSet {
+
+    //releases the sets and the snapshots which have become unreachable
+    static final Cleaner CLEANER = Cleaner.create();
+
+    private final MemoryTable memtable;
+    //from the newest to the oldest one
+    private final List<MemoryTable> immutableMemtables;
+    private final Levels ssTables;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Creates the set which is referenced by its creator.
+     * @param immutableMemtables - the memory tables being flushed from the newest to the oldest one.
+     * @param ssTables - the tables which mustn't be changed after it.
+     */
+    TableSet(
+            @NotNull final MemoryTable memtable,
+            @NotNull final List<MemoryTable> immutableMemtables,
+            @NotNull final Levels ssTables) {
+        this.memtable = memtable;
+        this.immutableMemtables = Collections.unmodifiableList(immutableMemtables);
+        this.ssTables = ssTables;
+        ssTables.tables().forEach(SSTable::retain);
+    }
+
+    @NotNull
+    MemoryTable getMemtable() {
+        return memtable;
+    }
+
+    @NotNull
+    List<MemoryTable> getImmutableMemtables() {
+        return immutableMemtables;
+    }
+
+    @NotNull
+    Levels getSsTables() {
+        return ssTables;
+    }
+
+    /**
+     * Returns the set in which the memory table is frozen and replaced by the given one.
+     */
+    @NotNull
+    TableSet withMemtable(@NotNull final MemoryTable newMemtable) {
+        final List<MemoryTable> frozen = new ArrayList<>(immutableMemtables.size() + 1);
+        frozen.add(memtable);
+        frozen.addAll(immutableMemtables);
+        return new TableSet(newMemtable, frozen, ssTables);
+    }
+
+    /**
+     * Returns the set in which the immutable memory table is replaced by its SSTable.
+     */
+    @NotNull
+    TableSet flushed(@NotNull final MemoryTable immutableMemtable, @NotNull final SSTable ssTable) {
+        final List<MemoryTable> rest = new ArrayList<>(immutableMemtables);
+        rest.remove(immutableMemtable);
+        final Levels levels = ssTables.copy();
+        levels.add(ssTable);
+        return new TableSet(memtable, rest, levels);
+    }
+
+    /**
+     * Returns the set in which the inputs of the compaction are replaced by its outputs.
+     */
+    @NotNull
+    TableSet compacted(@NotNull final List<SSTable> inputs, @NotNull final List<SSTable> outputs) {
+        final Levels levels = ssTables.copy();
+        inputs.forEach(levels::remove);
+        outputs.forEach(levels::add);
+        return new TableSet(memtable, immutableMemtables, levels);
+    }
+
+    /**
+     * Takes a reference to the set unless it has been released already.
+     * @return whether the reference is taken.
+     */
+    boolean retain() {
+        while (true) {
+            final int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases the reference, the last one releases the SSTables of the set.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            ssTables.tables().forEach(SSTable::release);
+        }
+    }
+
+    /**
+     * Provides the iterators of the tables from the newest to the oldest ones.
+     * @param to - the end of the range, exclusive, null means the range isn't bounded.
+     * @param descending - whether the iterators go from the end of the range to its start.
+     */
+    void addIterators(
+            @NotNull final List<Iterator<Cell>> iters,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final boolean descending) {
+        iters.add(memtable.iterator(from, to, descending));
+        for (final MemoryTable immutableMemtable : immutableMemtables) {
+            iters.add(immutableMemtable.iterator(from, to, descending));
+        }
+        ssTables.addIterators(iters, from, to, descending);
+    }
+
+    /**
+     * Wraps the iterator over the tables of the set, so the reference taken for it is released
+     * when the iterator is exhausted, closed or becomes unreachable.
+     */
+    @NotNull
+    RecordIterator pin(@NotNull final Iterator<Record> records) {
+        return new PinnedIterator(records, this);
+    }
+
+    private static final class PinnedIterator implements RecordIterator {
+        private final Iterator<Record> records;
+        private final Cleaner.Cleanable cleanable;
+
+        PinnedIterator(@NotNull final Iterator<Record> records, @NotNull final TableSet tables) {
+            this.records = records;
+            //the action mustn't refer to the iterator, otherwise it never becomes unreachable
+            this.cleanable = CLEANER.register(this, tables::release);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (records.hasNext()) {
+                return true;
+            }
+            //runs the release at most once
+            cleanable.clean();
+            return false;
+        }
+
+        @Override
+        public Record next() {
+            return records.next();
+        }
+
+        @Override
+        public void close() {
+            cleanable.clean();
+        }
+    }
+}
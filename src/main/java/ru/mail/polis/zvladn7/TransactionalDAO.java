@@ -2,9 +2,11 @@ package ru.mail.polis.zvladn7;
 
 import ru.mail.polis.DAO;
 
+import java.io.IOException;
+
 public interface TransactionalDAO extends DAO {
 
-    void commit();
+    void commit() throws IOException;
 
     void rollback();
 
@@ -1,124 +1,251 @@
 package ru.mail.polis.zvladn7;
 
-import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.WriteBatch;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
-import java.util.Iterator;
-import java.util.List;
+import java.util.HashSet;
 import java.util.NoSuchElementException;
-
+import java.util.Set;
+
+/**
+ * Transaction of {@link LsmDAOImpl} which buffers its writes in the private memory table.
+ * The pessimistic transaction locks every key it reads or writes and reads the freshest versions.
+ * The optimistic transaction takes no locks: it reads the snapshot taken at its first operation,
+ * remembers the keys it has read and applies the writes at commit only if none of these keys has been changed
+ * since the snapshot, otherwise it is rolled back. The keys inserted into the scanned ranges aren't detected
+ * and the optimistic transactions don't exclude the pessimistic ones, only each other and the plain writes.
+ */
 final class TransactionalDAOImpl implements TransactionalDAO {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionalDAOImpl.class);
-    private static long nextId;
-
-    private final Long id;
+    private final long id;
     private final MemoryTable memoryTable;
     private final LsmDAOImpl dao;
+    private final LockManager lockManager;
+    //the keys locked by the transaction, so they are released without scanning the lock table
+    private final Set<ByteBuffer> lockedKeys = new HashSet<>();
+    private final boolean optimistic;
+    //the keys read by the optimistic transaction which are validated at commit
+    private final Set<ByteBuffer> readKeys = new HashSet<>();
+    //the snapshot read by the optimistic transaction, null until its first operation
+    @Nullable
+    private SnapshotImpl snapshot;
 
     /**
      * TransactionalDAO implementation.
      * @param dao - DAO which has started transaction
+     * @param optimistic - whether the transaction validates its reads at commit instead of locking the keys
      */
-    TransactionalDAOImpl(@NotNull final LsmDAOImpl dao) {
+    TransactionalDAOImpl(@NotNull final LsmDAOImpl dao, final boolean optimistic) {
         this.memoryTable = new MemoryTable();
         this.dao = dao;
-        this.id = nextId++;
+        this.lockManager = dao.getLockManager();
+        this.id = lockManager.newOwner();
+        this.optimistic = optimistic;
     }
 
+    /**
+     * Applies the writes as a single batch, so they are durable, visible and flushed all together,
+     * and releases the keys. The batch is committed in a group with the concurrent ones.
+     * The optimistic transaction is rolled back if one of the keys read by it has been changed.
+     * The transaction starts over after it whether the writes have been applied or not.
+     */
     @Override
-    public void commit() {
+    public void commit() throws IOException {
+        final WriteBatch batch = new WriteBatch();
         memoryTable.iterator(ByteBuffer.allocate(0)).forEachRemaining(cell -> {
-            try {
-                if (cell.getValue().isTombstone()) {
-                    dao.remove(cell.getKey());
-                } else {
-                    dao.upsert(cell.getKey(), cell.getValue().getData());
-
-                }
-            } catch (IOException e) {
-                logger.error("The error occurred while transaction was trying to commit, id: " + id, e);
+            if (cell.getValue().isTombstone()) {
+                batch.remove(cell.getKey());
+            } else {
+                batch.upsert(cell.getKey(), cell.getValue().getData());
             }
         });
+        final boolean applied;
+        try {
+            //the transaction without a snapshot hasn't read anything
+            applied = dao.writeIfUnchanged(batch, readKeys, snapshot == null ? Long.MAX_VALUE : snapshot.getSequence());
+        } catch (IOException e) {
+            logger.error("The error occurred while transaction was trying to commit, id: " + id, e);
+            throw e;
+        } finally {
+            reset();
+        }
+        if (!applied) {
+            logger.warn("Transaction with id: {} was rolled back!", id);
+            throw new ConcurrentModificationException("The keys read by the transaction have been changed!");
+        }
     }
 
     @Override
     public void rollback() {
-        unlockKeys(id);
+        reset();
+    }
+
+    /**
+     * Releases the keys and the snapshot and drops the writes.
+     */
+    private void reset() {
+        unlockKeys();
         memoryTable.clear();
+        readKeys.clear();
+        if (snapshot != null) {
+            snapshot.close();
+            snapshot = null;
+        }
+    }
+
+    @NotNull
+    @Override
+    public RecordIterator iterator(@NotNull final ByteBuffer from) {
+        return tracked(records(from, null, false));
     }
 
     @NotNull
     @Override
-    public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
-        final List<Iterator<Cell>> iters = new ArrayList<>();
-        iters.add(memoryTable.iterator(from));
-        iters.addAll(dao.getAllCellItersList(from));
+    public RecordIterator descendingRange(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) >= 0) {
+            return RecordIterator.empty();
+        }
+        return tracked(records(from, to, true));
+    }
+
+    @NotNull
+    private RecordIterator records(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final boolean descending) {
+        return dao.records(from, to, descending, memoryTable, optimistic ? snapshotSequence() : Long.MAX_VALUE);
+    }
 
-        final Iterator<Cell> mergedElements = Iterators.mergeSorted(
-                iters,
-                Cell.BY_KEY_AND_VALUE_CREATION_TIME_COMPARATOR
-        );
+    /**
+     * Wraps the iterator of the optimistic transaction, so the keys it returns are validated at commit.
+     */
+    @NotNull
+    private RecordIterator tracked(@NotNull final RecordIterator records) {
+        if (!optimistic) {
+            return records;
+        }
+        return new RecordIterator() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
 
-        final Iterator<Cell> freshElements = Iters.collapseEquals(mergedElements, Cell::getKey);
-        final Iterator<Cell> aliveElements = Iterators.filter(freshElements, el -> !el.getValue().isTombstone());
+            @Override
+            public Record next() {
+                final Record record = records.next();
+                track(record.getKey());
+                return record;
+            }
 
-        return Iterators.transform(aliveElements, el -> Record.of(el.getKey(), el.getValue().getData()));
+            @Override
+            public void close() {
+                records.close();
+            }
+        };
     }
 
     @NotNull
     @Override
     public ByteBuffer get(@NotNull final ByteBuffer key) {
-        lock(key);
-
-        final Iterator<Record> iter = iterator(key);
-        if (!iter.hasNext()) {
-            throw new NoSuchElementException("Record wasn't found");
+        if (optimistic) {
+            //the absent key is validated too, so its insertion is a conflict
+            track(key.duplicate());
+        } else {
+            lock(key);
         }
 
-        final Record next = iter.next();
-        if (next.getKey().equals(key)) {
-            return next.getValue();
-        } else {
-            throw new NoSuchElementException("Record wasn't found");
+        try (RecordIterator iter = records(key, null, false)) {
+            if (!iter.hasNext()) {
+                throw new NoSuchElementException("Record wasn't found");
+            }
+
+            final Record next = iter.next();
+            if (next.getKey().equals(key)) {
+                return next.getValue();
+            } else {
+                throw new NoSuchElementException("Record wasn't found");
+            }
         }
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        if (optimistic) {
+            //the write is as old as the snapshot, so the reads of the transaction see it
+            memoryTable.put(key, new Value(snapshotSequence(), value.duplicate()));
+            return;
+        }
         lock(key);
         memoryTable.upsert(key, value);
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) {
+        if (optimistic) {
+            memoryTable.put(key, Value.newTombstoneValue(snapshotSequence()));
+            return;
+        }
         lock(key);
         memoryTable.remove(key);
     }
 
+    /**
+     * Takes the snapshot of the storage, it doesn't see the writes of the transaction until they are committed.
+     */
+    @NotNull
+    @Override
+    public SnapshotImpl snapshot() {
+        return dao.snapshot();
+    }
+
     @Override
     public void close() {
         throw new UnsupportedOperationException("close() aren't supported for TransactionalDAO class");
     }
 
+    /**
+     * Remembers the key read by the optimistic transaction unless the transaction has written it,
+     * so the value read is its own one.
+     */
+    private void track(@NotNull final ByteBuffer key) {
+        if (memoryTable.get(key, Long.MAX_VALUE) == null) {
+            readKeys.add(key);
+        }
+    }
+
+    private long snapshotSequence() {
+        if (snapshot == null) {
+            snapshot = dao.snapshot();
+        }
+        return snapshot.getSequence();
+    }
+
+    /**
+     * Locks the key or rolls the transaction back if another one holds the key longer than the lock timeout.
+     */
     private void lock(@NotNull final ByteBuffer key) {
-        final Long lockId = dao.lockTable.putIfAbsent(key, id);
-        if (lockId != null && !id.equals(lockId)) {
+        if (lockedKeys.contains(key)) {
+            return;
+        }
+        if (lockManager.lock(key, id)) {
+            lockedKeys.add(key.duplicate());
+        } else {
             rollback();
             logger.warn("Transaction with id: {} was rolled back!", id);
             throw new ConcurrentModificationException("The key has been already locked by another transaction!");
         }
     }
 
-    private void unlockKeys(@NotNull final Long id) {
-        dao.lockTable.entrySet().removeIf(entry -> entry.getValue().equals(id));
+    private void unlockKeys() {
+        lockManager.unlock(lockedKeys, id);
+        lockedKeys.clear();
     }
 }
@@ -5,22 +5,28 @@ import org.jetbrains.annotations.NotNull;
 import java.nio.ByteBuffer;
 import java.util.NoSuchElementException;
 
+/**
+ * Version of the value of a key.
+ * The sequence orders the versions: every write of the DAO gets the greater sequence than the previous one.
+ * The sequences are hybrid: a sequence is never less than the time of the write in milliseconds,
+ * so the versions written by the older DAOs, which stored the time instead of the sequence, are older.
+ */
 public class Value implements Comparable<Value> {
-    private final long timestamp;
+    private final long sequence;
     private final ByteBuffer data;
 
-    Value(final long timestamp, final ByteBuffer data) {
-        this.timestamp = timestamp;
+    Value(final long sequence, final ByteBuffer data) {
+        this.sequence = sequence;
         this.data = data;
     }
 
-    Value(final long timestamp) {
-        this.timestamp = timestamp;
+    Value(final long sequence) {
+        this.sequence = sequence;
         this.data = null;
     }
 
-    public static Value newTombstoneValue(final long timestamp) {
-        return new Value(timestamp);
+    public static Value newTombstoneValue(final long sequence) {
+        return new Value(sequence);
     }
 
     boolean isTombstone() {
@@ -35,13 +41,12 @@ public class Value implements Comparable<Value> {
         return data.asReadOnlyBuffer();
     }
 
-    @NotNull
-    long getTimestamp() {
-        return timestamp;
+    long getSequence() {
+        return sequence;
     }
 
     @Override
     public int compareTo(@NotNull final Value o) {
-        return Long.compare(o.timestamp, timestamp);
+        return Long.compare(o.sequence, sequence);
     }
 }
@@ -0,0 +1,24 @@
+package ru.mail.polis.zvladn7;
+
+/**
+ * Defines when the records appended to the write-ahead log are forced to the disk.
+ */
+public enum WalSyncMode {
+
+    /**
+     * Every write is forced before it returns, so the write is never lost after it returned.
+     */
+    PER_WRITE,
+
+    /**
+     * Every write is forced before it returns, but the writers which append concurrently
+     * wait for a single force made by one of them.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * The log is forced in the background periodically,
+     * so the writes made during the last sync interval may be lost on a crash.
+     */
+    PERIODIC
+}
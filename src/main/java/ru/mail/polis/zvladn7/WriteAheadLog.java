@@ -0,0 +1,421 @@
+package ru.mail.polis.zvladn7;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead log of the memory tables.
+ * The log consists of segment files, every memory table has its own segment which is rolled
+ * when the table is frozen and deleted when the table's SSTable is written.
+ * Segment structure.
+ * * [ records ]
+ * Record structure.
+ * * payload size | payload CRC32C | payload
+ * Payload structure.
+ * * amount of cells | [ sequence | key size | key | value size | value ]
+ * if value size is -1 than value is absent
+ * All the cells of one record are replayed or lost together.
+ * A record which is torn by a crash fails the CRC check, so it and the rest of the segment are skipped on replay.
+ */
+final class WriteAheadLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String SEGMENT_FILE_POSTFIX = ".log";
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    //the buffer of a bigger record isn't kept, so a single huge batch doesn't pin the direct memory
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private final File storage;
+    private final WalSyncMode syncMode;
+    @Nullable
+    private final ScheduledExecutorService syncer;
+
+    //guards the appends and the record buffer
+    private final Lock appendLock = new ReentrantLock();
+    private ByteBuffer recordBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    private long segmentId;
+    //segment file is created by the first append, so the memory tables without writes don't leave empty files
+    private volatile FileChannel channel;
+    //amount of bytes appended to all the segments since the log was opened
+    private volatile long writtenPosition;
+
+    //guards the forces, the segment isn't closed while it is being forced
+    private final Lock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    //amount of the forces in progress, the group commit makes one at once and others wait for it
+    private int forces;
+    private long syncedPosition;
+
+    /**
+     * Opens the log. Existing segments are kept for {@link #replay(Consumer)}, new records go to a new segment.
+     * @param storage - the directory where segments stored.
+     * @param syncMode - when the records are forced to the disk.
+     * @param syncIntervalMillis - interval between the syncs in the {@link WalSyncMode#PERIODIC} mode.
+     */
+    WriteAheadLog(
+            @NotNull final File storage,
+            @NotNull final WalSyncMode syncMode,
+            final long syncIntervalMillis) throws IOException {
+        this.storage = storage;
+        this.syncMode = syncMode;
+        final List<Long> segments = existingSegments();
+        this.segmentId = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+        if (syncMode == WalSyncMode.PERIODIC) {
+            syncer = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("lsm-wal-syncer-%d")
+                            .setDaemon(true)
+                            .build());
+            syncer.scheduleWithFixedDelay(this::syncPeriodically, syncIntervalMillis, syncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Passes the cells of the existing segments to the consumer in the order they were appended.
+     * Must be called before the first append.
+     */
+    void replay(@NotNull final Consumer<Cell> consumer) throws IOException {
+        for (final long segment : existingSegments()) {
+            if (segment < segmentId) {
+                replaySegment(segmentFile(segment), consumer);
+            }
+        }
+    }
+
+    /**
+     * Appends the cells as a single record without forcing it.
+     * The caller forces it by {@link #sync(long)}, e.g. after it has released its locks,
+     * so the writers which wait for the force don't block the others.
+     * @return the position of the end of the record in the log.
+     */
+    long append(@NotNull final Collection<Cell> cells) throws IOException {
+        final long position;
+        appendLock.lock();
+        try {
+            final ByteBuffer record = encode(cells);
+            if (channel == null) {
+                channel = FileChannel.open(
+                        segmentFile(segmentId).toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            final int recordSize = record.remaining();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            position = writtenPosition + recordSize;
+            writtenPosition = position;
+        } finally {
+            appendLock.unlock();
+        }
+        return position;
+    }
+
+    /**
+     * Forces the log up to the given position according to the sync mode.
+     * @param position - the position returned by {@link #append(Collection)}.
+     */
+    void sync(final long position) throws IOException {
+        if (syncMode == WalSyncMode.PER_WRITE) {
+            force(position);
+        } else if (syncMode == WalSyncMode.GROUP_COMMIT) {
+            awaitSync(position);
+        }
+    }
+
+    /**
+     * Forces and closes the current segment, the following records go to a new one.
+     * Must not be called concurrently with {@link #append(Collection)}.
+     * @return id of the closed segment to pass to {@link #deleteUpTo(long)} when its data is persisted.
+     */
+    long roll() throws IOException {
+        closeSegment();
+        return segmentId++;
+    }
+
+    /**
+     * Deletes the closed segments which ids are not greater than the given one.
+     */
+    void deleteUpTo(final long lastSegment) throws IOException {
+        for (final long segment : existingSegments()) {
+            if (segment <= lastSegment) {
+                Files.delete(segmentFile(segment).toPath());
+            }
+        }
+    }
+
+    /**
+     * Forces and closes the current segment. The segment isn't deleted, it is replayed by the next open.
+     */
+    void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        closeSegment();
+    }
+
+    private void closeSegment() throws IOException {
+        syncLock.lock();
+        try {
+            while (forces > 0) {
+                synced.awaitUninterruptibly();
+            }
+            final FileChannel current = channel;
+            if (current != null) {
+                channel = null;
+                try (current) {
+                    current.force(false);
+                }
+            }
+            syncedPosition = writtenPosition;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Forces the segment by the calling thread unless the position has been forced already.
+     */
+    private void force(final long position) throws IOException {
+        final FileChannel current;
+        final long target;
+        syncLock.lock();
+        try {
+            current = channel;
+            if (syncedPosition >= position || current == null) {
+                return;
+            }
+            ++forces;
+            target = writtenPosition;
+        } finally {
+            syncLock.unlock();
+        }
+        boolean forced = false;
+        try {
+            current.force(false);
+            forced = true;
+        } finally {
+            syncLock.lock();
+            try {
+                --forces;
+                if (forced) {
+                    syncedPosition = Math.max(syncedPosition, target);
+                }
+                synced.signalAll();
+            } finally {
+                syncLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits until the log is forced up to the given position.
+     * The first waiting thread forces the segment while the others wait for it,
+     * so one force covers the records of all the threads which have appended before it started.
+     */
+    private void awaitSync(final long position) throws IOException {
+        syncLock.lock();
+        try {
+            while (syncedPosition < position) {
+                if (forces > 0) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                final FileChannel current = channel;
+                if (current == null) {
+                    return;
+                }
+                ++forces;
+                final long target = writtenPosition;
+                syncLock.unlock();
+                boolean forced = false;
+                try {
+                    current.force(false);
+                    forced = true;
+                } finally {
+                    syncLock.lock();
+                    --forces;
+                    if (forced) {
+                        syncedPosition = Math.max(syncedPosition, target);
+                    }
+                    synced.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void syncPeriodically() {
+        try {
+            awaitSync(writtenPosition);
+        } catch (IOException e) {
+            logger.error("Unable to sync the write-ahead log", e);
+        }
+    }
+
+    @NotNull
+    private ByteBuffer encode(@NotNull final Collection<Cell> cells) {
+        int payloadSize = Integer.BYTES;
+        for (final Cell cell : cells) {
+            payloadSize += Integer.BYTES + cell.getKey().remaining() + Long.BYTES + Integer.BYTES;
+            if (!cell.getValue().isTombstone()) {
+                payloadSize += cell.getValue().getData().remaining();
+            }
+        }
+        final int recordSize = HEADER_SIZE + payloadSize;
+        final ByteBuffer record;
+        if (recordSize > MAX_RETAINED_BUFFER_SIZE) {
+            //it is released by the GC after the write
+            record = ByteBuffer.allocateDirect(recordSize);
+        } else {
+            if (recordBuffer.capacity() < recordSize) {
+                recordBuffer = ByteBuffer.allocateDirect(
+                        Math.min(MAX_RETAINED_BUFFER_SIZE, Math.max(recordSize, recordBuffer.capacity() * 2)));
+            }
+            record = recordBuffer;
+        }
+
+        record.clear();
+        record.position(HEADER_SIZE);
+        record.putInt(cells.size());
+        for (final Cell cell : cells) {
+            final ByteBuffer key = cell.getKey();
+            final Value value = cell.getValue();
+            record.putLong(value.getSequence());
+            record.putInt(key.remaining());
+            record.put(key);
+            if (value.isTombstone()) {
+                record.putInt(-1);
+            } else {
+                final ByteBuffer data = value.getData();
+                record.putInt(data.remaining());
+                record.put(data);
+            }
+        }
+        record.flip();
+
+        final CRC32C crc = new CRC32C();
+        crc.update(record.duplicate().position(HEADER_SIZE));
+        record.putInt(0, payloadSize);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        return record;
+    }
+
+    private static void replaySegment(@NotNull final File file, @NotNull final Consumer<Cell> consumer)
+            throws IOException {
+        try (FileChannel segment = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = segment.size();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long position = 0;
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(segment, header, position);
+                final int payloadSize = header.getInt(0);
+                if (payloadSize < Integer.BYTES || position + HEADER_SIZE + payloadSize > size) {
+                    break;
+                }
+                final ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+                readFully(segment, payload, position + HEADER_SIZE);
+                final CRC32C crc = new CRC32C();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != header.getInt(Integer.BYTES)) {
+                    break;
+                }
+                decode(payload, consumer);
+                position += HEADER_SIZE + payloadSize;
+            }
+            if (position < size) {
+                logger.warn("The tail of the log segment {} is torn, {} bytes are skipped",
+                        file.getName(), size - position);
+            }
+        }
+    }
+
+    private static void decode(@NotNull final ByteBuffer payload, @NotNull final Consumer<Cell> consumer) {
+        final int amount = payload.getInt();
+        for (int i = 0; i < amount; ++i) {
+            final long sequence = payload.getLong();
+            final ByteBuffer key = slice(payload, payload.getInt());
+            final int valueSize = payload.getInt();
+            final Value value = valueSize == -1
+                    ? Value.newTombstoneValue(sequence)
+                    : new Value(sequence, slice(payload, valueSize));
+            consumer.accept(new Cell(key, value));
+        }
+    }
+
+    private static ByteBuffer slice(@NotNull final ByteBuffer buffer, final int length) {
+        final ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static void readFully(
+            @NotNull final FileChannel channel,
+            @NotNull final ByteBuffer buffer,
+            final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of the log segment");
+            }
+            offset += read;
+        }
+        buffer.flip();
+    }
+
+    @NotNull
+    private File segmentFile(final long segment) {
+        return new File(storage, segment + SEGMENT_FILE_POSTFIX);
+    }
+
+    @NotNull
+    private List<Long> existingSegments() throws IOException {
+        final List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(storage.toPath())) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_FILE_POSTFIX))
+                    .forEach(name -> {
+                        try {
+                            segments.add(Long.parseLong(name.substring(0, name.indexOf(SEGMENT_FILE_POSTFIX))));
+                        } catch (NumberFormatException e) {
+                            logger.info("Unexpected name of log segment file: " + name, e);
+                        }
+                    });
+        }
+        segments.sort(null);
+        return segments;
+    }
+}
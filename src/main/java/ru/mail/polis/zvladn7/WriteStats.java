@@ -0,0 +1,48 @@
+package ru.mail.polis.zvladn7;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of SSTables written by flushes and compactions.
+ */
+public final class WriteStats {
+
+    private final LongAdder tables = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    public long getTablesWritten() {
+        return tables.sum();
+    }
+
+    public long getEntriesWritten() {
+        return entries.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytes.sum();
+    }
+
+    /**
+     * Total time spent writing the tables, so bytes per second are bytes written divided by it.
+     */
+    public long getWriteNanos() {
+        return nanos.sum();
+    }
+
+    void recordTable(final long entriesWritten, final long bytesWritten, final long writeNanos) {
+        tables.increment();
+        entries.add(entriesWritten);
+        bytes.add(bytesWritten);
+        nanos.add(writeNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "WriteStats{tables=" + getTablesWritten()
+                + ", entries=" + getEntriesWritten()
+                + ", bytes=" + getBytesWritten()
+                + ", nanos=" + getWriteNanos() + '}';
+    }
+}
@@ -161,6 +161,80 @@ class BasicTest extends TestBase {
         }
     }
 
+    @Test
+    void rangeScan(@TempDir File data) throws IOException {
+        final int count = 1000;
+        final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+        // Spread the data over the flushed tables and the memory table
+        for (int round = 0; round < 3; round++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < count; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    map.put(key, value);
+                }
+                final ByteBuffer removed = Iterators.get(map.keySet().iterator(), map.size() / 2);
+                dao.remove(removed);
+                map.remove(removed);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < count; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                map.put(key, value);
+            }
+            final ByteBuffer first = map.firstKey();
+            final ByteBuffer last = map.lastKey();
+            for (int i = 0; i < 10; i++) {
+                final ByteBuffer from = Iterators.get(map.keySet().iterator(), i * 97);
+                final ByteBuffer to = Iterators.get(map.keySet().iterator(), i * 97 + 50);
+                checkRange(dao, map, from, to);
+            }
+            checkRange(dao, map, first, last);
+            checkRange(dao, map, last, first);
+            checkRange(dao, map, first, first);
+
+            // The latest records before the middle key
+            final ByteBuffer middle = Iterators.get(map.keySet().iterator(), map.size() / 2);
+            final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> expectedIter =
+                    map.headMap(middle, false).descendingMap().entrySet().iterator();
+            final Iterator<Record> latest = dao.descendingRange(ByteBuffer.allocate(0), middle);
+            for (int i = 0; i < 10; i++) {
+                final Map.Entry<ByteBuffer, ByteBuffer> expected = expectedIter.next();
+                final Record actual = latest.next();
+                assertEquals(expected.getKey(), actual.getKey());
+                assertEquals(expected.getValue(), actual.getValue());
+            }
+        }
+    }
+
+    private static void checkRange(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> map,
+            final ByteBuffer from,
+            final ByteBuffer to) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected =
+                from.compareTo(to) > 0 ? new TreeMap<>() : map.subMap(from, true, to, false);
+        checkRecords(expected.entrySet().iterator(), dao.range(from, to));
+        checkRecords(expected.descendingMap().entrySet().iterator(), dao.descendingRange(from, to));
+    }
+
+    private static void checkRecords(
+            final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> expectedIter,
+            final Iterator<Record> actualIter) {
+        while (expectedIter.hasNext()) {
+            final Map.Entry<ByteBuffer, ByteBuffer> expected = expectedIter.next();
+            final Record actual = actualIter.next();
+            assertEquals(expected.getKey(), actual.getKey());
+            assertEquals(expected.getValue(), actual.getValue());
+        }
+        assertFalse(actualIter.hasNext());
+    }
+
     @Test
     void emptyValue(@TempDir File data) throws IOException {
         final ByteBuffer key = randomKey();
@@ -16,15 +16,28 @@
 
 package ru.mail.polis;
 
+import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.zvladn7.Compaction;
+import ru.mail.polis.zvladn7.CompactionPolicy;
+import ru.mail.polis.zvladn7.LsmDAOConfig;
+import ru.mail.polis.zvladn7.LsmDAOImpl;
+import ru.mail.polis.zvladn7.RecordIterator;
+import ru.mail.polis.zvladn7.TableInfo;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -171,4 +184,263 @@ class CompactionTest extends TestBase {
         // Heuristic
         assertTrue(size < valueSize);
     }
+
+    @Test
+    void dropTombstones(@TempDir File data) throws IOException {
+        final int keyCount = 10_000;
+
+        final Collection<ByteBuffer> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(randomKey());
+        }
+
+        // Insert and remove keys in the separate tables
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                dao.upsert(key, randomValue());
+            }
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                dao.remove(key);
+            }
+        }
+
+        // Full compaction leaves neither the values nor the tombstones
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.compact();
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+
+        // Check store size
+        final long size = Files.directorySize(data);
+
+        // Heuristic
+        assertTrue(size < keyCount * KEY_LENGTH);
+    }
+
+    @Test
+    void iterateWhileCompacting(@TempDir File data) throws IOException {
+        final int keyCount = 1000;
+        final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+
+        // Spread the keys over several tables
+        for (int round = 0; round < 3; round++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < keyCount; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    map.put(key, value);
+                }
+            }
+        }
+
+        // The iterator reads the tables replaced by the compaction
+        try (DAO dao = DAOFactory.create(data)) {
+            final Iterator<Record> actualIter = dao.iterator(ByteBuffer.allocate(0));
+            final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> expectedIter = map.entrySet().iterator();
+            for (int i = 0; i < 10; i++) {
+                assertEquals(expectedIter.next().getKey(), actualIter.next().getKey());
+            }
+            dao.compact();
+            while (expectedIter.hasNext()) {
+                final Map.Entry<ByteBuffer, ByteBuffer> expected = expectedIter.next();
+                final Record actual = actualIter.next();
+                assertEquals(expected.getKey(), actual.getKey());
+                assertEquals(expected.getValue(), actual.getValue());
+            }
+            assertFalse(actualIter.hasNext());
+        }
+    }
+
+    @Test
+    void closedIteratorReleasesTables(@TempDir File data) throws IOException {
+        // Spread the keys over several tables
+        for (int round = 0; round < 3; round++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < 100; i++) {
+                    dao.upsert(randomKey(), randomValue());
+                }
+            }
+        }
+        final List<String> replaced = tableNames(data);
+
+        // The replaced tables are deleted once the iterator which reads them is closed
+        try (DAO dao = DAOFactory.create(data)) {
+            try (RecordIterator iter = (RecordIterator) dao.iterator(ByteBuffer.allocate(0))) {
+                iter.next();
+                dao.compact();
+                assertTrue(tableNames(data).containsAll(replaced));
+            }
+            final List<String> tables = tableNames(data);
+            replaced.forEach(name -> assertFalse(tables.contains(name)));
+        }
+    }
+
+    @Test
+    void levelZeroMergeKeepsPlace(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final List<ByteBuffer> values = new ArrayList<>();
+
+        // Every round writes a level 0 table
+        for (int round = 0; round < 3; round++) {
+            try (DAO dao = createMergingOldestPair(data)) {
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                values.add(value);
+            }
+        }
+
+        // The merge of the two older tables gets a new file, but stays below the newest table
+        try (DAO dao = createMergingOldestPair(data)) {
+            dao.compact();
+            assertEquals(values.get(2), dao.get(key));
+        }
+        try (DAO dao = createMergingOldestPair(data)) {
+            assertEquals(values.get(2), dao.get(key));
+        }
+    }
+
+    @Test
+    void crashBeforeLevelZeroMergeCommit(@TempDir File root) throws IOException {
+        final File data = new File(root, "data");
+        final File crashed = new File(root, "crashed");
+        assertTrue(data.mkdir());
+        assertTrue(crashed.mkdir());
+
+        final ByteBuffer removedKey = randomKey();
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        // The removal is in the newer table than the value
+        try (DAO dao = createMergingOldestPair(data)) {
+            dao.upsert(removedKey, randomValue());
+            dao.upsert(key, value);
+        }
+        try (DAO dao = createMergingOldestPair(data)) {
+            dao.remove(removedKey);
+        }
+        try (DAO dao = createMergingOldestPair(data)) {
+            dao.upsert(randomKey(), randomValue());
+        }
+        copyFiles(data, crashed);
+
+        // The merge drops the tombstone, since no table is older than the merged ones
+        try (DAO dao = createMergingOldestPair(data)) {
+            dao.compact();
+            assertThrows(NoSuchElementException.class, () -> dao.get(removedKey));
+        }
+
+        // The crash leaves the tables written by the merge, but not the manifest commit
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assertNotNull(tables);
+        for (final File table : tables) {
+            java.nio.file.Files.copy(table.toPath(), new File(crashed, table.getName()).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (DAO dao = createMergingOldestPair(crashed)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(removedKey));
+            assertEquals(value, dao.get(key));
+            dao.compact();
+        }
+        try (DAO dao = createMergingOldestPair(crashed)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(removedKey));
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void levelZeroTableNotMovedOverOverlapping(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer otherKey = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer newValue = randomValue();
+
+        try (DAO dao = createMovingLevelZero(data)) {
+            // The tables which overlap nothing in level 1 are moved there
+            dao.upsert(key, value);
+            dao.compact();
+            dao.upsert(otherKey, value);
+            dao.compact();
+            assertEquals(value, dao.get(key));
+            assertEquals(value, dao.get(otherKey));
+
+            // The moved table would keep its rank among the overlapping level 1 tables
+            dao.upsert(key, newValue);
+            assertThrows(IOException.class, dao::compact);
+            assertEquals(newValue, dao.get(key));
+        }
+        try (DAO dao = createMovingLevelZero(data)) {
+            assertEquals(newValue, dao.get(key));
+            assertEquals(value, dao.get(otherKey));
+        }
+    }
+
+    @NotNull
+    private static List<String> tableNames(@NotNull final File data) {
+        final String[] names = data.list((dir, name) -> name.endsWith(".dat"));
+        assertNotNull(names);
+        return List.of(names);
+    }
+
+    private static void copyFiles(@NotNull final File src, @NotNull final File dst) throws IOException {
+        final File[] files = src.listFiles();
+        assertNotNull(files);
+        for (final File file : files) {
+            java.nio.file.Files.copy(file.toPath(), new File(dst, file.getName()).toPath());
+        }
+    }
+
+    private static DAO createMergingOldestPair(@NotNull final File data) throws IOException {
+        final LsmDAOConfig config = LsmDAOConfig.builder()
+                .compactionPolicy(new OldestPairPolicy())
+                .build();
+        return new LsmDAOImpl(data, (int) (DAOFactory.MAX_HEAP / 32), config);
+    }
+
+    private static DAO createMovingLevelZero(@NotNull final File data) throws IOException {
+        final LsmDAOConfig config = LsmDAOConfig.builder()
+                .compactionPolicy(new LevelZeroPolicy())
+                .build();
+        return new LsmDAOImpl(data, (int) (DAOFactory.MAX_HEAP / 32), config);
+    }
+
+    /**
+     * Merges the two oldest level 0 tables into level 0 by {@link DAO#compact()} only.
+     */
+    private static final class OldestPairPolicy implements CompactionPolicy {
+        @Override
+        public Compaction pickCompaction(@NotNull final List<TableInfo> tables) {
+            return null;
+        }
+
+        @NotNull
+        @Override
+        public Compaction fullCompaction(@NotNull final List<TableInfo> tables) {
+            return new Compaction(tables.subList(0, 2), 0, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Merges the level 0 tables into level 1 by {@link DAO#compact()} only, whatever overlaps them there.
+     */
+    private static final class LevelZeroPolicy implements CompactionPolicy {
+        @Override
+        public Compaction pickCompaction(@NotNull final List<TableInfo> tables) {
+            return null;
+        }
+
+        @NotNull
+        @Override
+        public Compaction fullCompaction(@NotNull final List<TableInfo> tables) {
+            final List<TableInfo> levelZero = new ArrayList<>();
+            for (final TableInfo table : tables) {
+                if (table.getLevel() == 0) {
+                    levelZero.add(table);
+                }
+            }
+            return new Compaction(levelZero, 1, Long.MAX_VALUE);
+        }
+    }
 }
@@ -16,6 +16,7 @@
 
 package ru.mail.polis;
 
+import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -32,6 +33,7 @@ import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -83,6 +85,39 @@ class PersistenceTest extends TestBase {
         }
     }
 
+    @Test
+    void replayAfterCrash(@TempDir File root) throws IOException {
+        final File data = new File(root, "data");
+        final File crashed = new File(root, "crashed");
+        assertTrue(data.mkdir());
+        assertTrue(crashed.mkdir());
+
+        // Reference values
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removedKey = randomKey();
+
+        // Fill data and "crash": the files are taken before close flushes the log
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            dao.upsert(removedKey, randomValue());
+            dao.remove(removedKey);
+            copyFiles(data, crashed);
+        }
+
+        // Recreate dao from the log
+        try (DAO dao = DAOFactory.create(crashed)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removedKey));
+        }
+
+        // The log is flushed to SSTables on close
+        try (DAO dao = DAOFactory.create(crashed)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removedKey));
+        }
+    }
+
     @Test
     void remove(@TempDir File data) throws IOException {
         // Reference value
@@ -263,4 +298,12 @@ class PersistenceTest extends TestBase {
             }
         }
     }
+
+    private static void copyFiles(@NotNull final File src, @NotNull final File dst) throws IOException {
+        final File[] files = src.listFiles();
+        assertNotNull(files);
+        for (final File file : files) {
+            java.nio.file.Files.copy(file.toPath(), new File(dst, file.getName()).toPath());
+        }
+    }
 }
@@ -0,0 +1,138 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotTest extends TestBase {
+
+    @Test
+    void seesStateAtSnapshot(@TempDir File data) throws IOException {
+        final int amount = 1000;
+
+        final NavigableMap<ByteBuffer, ByteBuffer> before = new TreeMap<>();
+        final NavigableMap<ByteBuffer, ByteBuffer> after = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < amount; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                before.put(key, value);
+            }
+            after.putAll(before);
+
+            try (Snapshot snapshot = dao.snapshot()) {
+                //overwrite, remove and add the keys, the versions the snapshot sees are flushed and compacted
+                int i = 0;
+                for (final ByteBuffer key : new ArrayList<>(before.keySet())) {
+                    if (i % 3 == 0) {
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(key, value);
+                        after.put(key, value);
+                    } else if (i % 3 == 1) {
+                        dao.remove(key);
+                        after.remove(key);
+                    }
+                    i++;
+                }
+                for (int j = 0; j < amount / 10; j++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    after.put(key, value);
+                }
+                dao.compact();
+
+                checkRecords(before, snapshot.iterator(ByteBuffer.allocate(0)));
+                checkRecords(before.descendingMap(), snapshot.descendingRange(ByteBuffer.allocate(0), null));
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : before.entrySet()) {
+                    assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+                }
+                for (final ByteBuffer key : after.keySet()) {
+                    if (!before.containsKey(key)) {
+                        assertThrows(NoSuchElementException.class, () -> snapshot.get(key));
+                    }
+                }
+                checkRecords(after, dao.iterator(ByteBuffer.allocate(0)));
+            }
+
+            //the versions of the closed snapshot are collected
+            dao.compact();
+            checkRecords(after, dao.iterator(ByteBuffer.allocate(0)));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            checkRecords(after, dao.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+
+    @Test
+    void seesDataBeforeFirstWrite(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+        //the storage written by the older versions doesn't have the manifest and the last sequence
+        assertTrue(new File(data, "MANIFEST").delete());
+
+        try (DAO dao = DAOFactory.create(data); Snapshot snapshot = dao.snapshot()) {
+            assertEquals(value, snapshot.get(key));
+        }
+    }
+
+    @Test
+    void closedSnapshot(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            final Snapshot snapshot = dao.snapshot();
+            snapshot.close();
+            assertThrows(IllegalStateException.class, () -> snapshot.get(randomKey()));
+        }
+    }
+
+    @Test
+    void newerWriteWinsAfterReopen(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        //the updates of the same key get the sequences ahead of the clock
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < 10_000; i++) {
+                dao.upsert(key, randomValue());
+            }
+            dao.compact();
+        }
+
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+            dao.compact();
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    private static void checkRecords(
+            final Map<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> records) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+}
@@ -3,6 +3,8 @@ package ru.mail.polis;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import ru.mail.polis.zvladn7.LsmDAO;
+import ru.mail.polis.zvladn7.LsmDAOConfig;
+import ru.mail.polis.zvladn7.LsmDAOImpl;
 import ru.mail.polis.zvladn7.TransactionalDAO;
 
 import java.io.File;
@@ -12,9 +14,16 @@ import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class TransactionsTest extends TestBase {
 
@@ -53,6 +62,59 @@ class TransactionsTest extends TestBase {
         }
     }
 
+    @Test
+    void waitForLock(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final LsmDAOConfig config = LsmDAOConfig.builder()
+                .lockTimeoutMillis(TimeUnit.SECONDS.toMillis(10))
+                .build();
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (LsmDAO dao = new LsmDAOImpl(data, (int) DAOFactory.MAX_HEAP / 32, config)) {
+            final TransactionalDAO first = dao.beginTransaction();
+            first.upsert(key, randomValue());
+
+            //the second transaction waits for the key instead of being rolled back
+            final TransactionalDAO second = dao.beginTransaction();
+            final Future<?> waiting = executor.submit(() -> {
+                second.upsert(key, value);
+                return null;
+            });
+            assertThrows(TimeoutException.class, () -> waiting.get(100, TimeUnit.MILLISECONDS));
+
+            first.rollback();
+            waiting.get(10, TimeUnit.SECONDS);
+            assertEquals(value, second.get(key));
+            second.rollback();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void lockTimeout(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+        final LsmDAOConfig config = LsmDAOConfig.builder()
+                .lockTimeoutMillis(50)
+                .build();
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (LsmDAO dao = new LsmDAOImpl(data, (int) DAOFactory.MAX_HEAP / 32, config)) {
+            final TransactionalDAO first = dao.beginTransaction();
+            first.upsert(key, randomValue());
+
+            final TransactionalDAO second = dao.beginTransaction();
+            final Future<ByteBuffer> waiting = executor.submit(() -> second.get(key));
+            final ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> waiting.get(10, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof ConcurrentModificationException);
+            first.rollback();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     void commit(@TempDir File data) throws IOException {
         final ByteBuffer key = randomKey();
@@ -70,6 +132,143 @@ class TransactionsTest extends TestBase {
         }
     }
 
+    @Test
+    void commitReleasesKeys(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (LsmDAO dao = DAOFactory.create(data)) {
+            final TransactionalDAO first = dao.beginTransaction();
+            first.upsert(key, randomValue());
+            first.commit();
+
+            final TransactionalDAO second = dao.beginTransaction();
+            second.upsert(key, value);
+            second.commit();
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void concurrentCommits(@TempDir File data) throws Exception {
+        final int amountOfThreads = 8;
+        final int amountOfTransactions = 100;
+        final int keysPerTransaction = 10;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(amountOfThreads);
+        try (LsmDAO dao = DAOFactory.create(data)) {
+            final List<Future<?>> futures = new ArrayList<>(amountOfThreads);
+            for (int t = 0; t < amountOfThreads; ++t) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < amountOfTransactions; ++i) {
+                        final TransactionalDAO transaction = dao.beginTransaction();
+                        for (int k = 0; k < keysPerTransaction; ++k) {
+                            transaction.upsert(transactionKey(thread, i, k), transactionValue(thread, i));
+                        }
+                        transaction.commit();
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+
+            for (int t = 0; t < amountOfThreads; ++t) {
+                for (int i = 0; i < amountOfTransactions; ++i) {
+                    for (int k = 0; k < keysPerTransaction; ++k) {
+                        assertEquals(transactionValue(t, i), dao.get(transactionKey(t, i, k)));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static ByteBuffer transactionKey(final int thread, final int transaction, final int key) {
+        return ByteBuffer.allocate(Integer.BYTES * 3).putInt(thread).putInt(transaction).putInt(key).flip();
+    }
+
+    private static ByteBuffer transactionValue(final int thread, final int transaction) {
+        return ByteBuffer.allocate(Integer.BYTES * 2).putInt(thread).putInt(transaction).flip();
+    }
+
+    @Test
+    void optimisticConflict(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer otherKey = randomKey();
+
+        try (LsmDAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+
+            final TransactionalDAO first = dao.beginOptimisticTransaction();
+            final TransactionalDAO second = dao.beginOptimisticTransaction();
+            assertEquals(value, first.get(key));
+            assertEquals(value, second.get(key));
+
+            //no locks are taken, so both transactions read and write the key
+            final ByteBuffer firstValue = randomValue();
+            first.upsert(key, firstValue);
+            second.upsert(key, randomValue());
+            second.upsert(otherKey, randomValue());
+
+            first.commit();
+            assertEquals(firstValue, dao.get(key));
+
+            //the key read by the second transaction has been changed
+            assertThrows(ConcurrentModificationException.class, second::commit);
+            assertEquals(firstValue, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(otherKey));
+        }
+    }
+
+    @Test
+    void optimisticSnapshot(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer otherKey = randomKey();
+        final ByteBuffer otherValue = randomValue();
+
+        try (LsmDAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+
+            final TransactionalDAO transaction = dao.beginOptimisticTransaction();
+            assertEquals(value, transaction.get(key));
+
+            //the write of the key which the transaction hasn't read isn't a conflict
+            dao.upsert(otherKey, randomValue());
+            transaction.upsert(otherKey, otherValue);
+            assertEquals(otherValue, transaction.get(otherKey));
+
+            transaction.commit();
+            assertEquals(value, dao.get(key));
+            assertEquals(otherValue, dao.get(otherKey));
+        }
+    }
+
+    @Test
+    void transactionSnapshot(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (LsmDAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+
+            final TransactionalDAO transaction = dao.beginTransaction();
+            transaction.upsert(key, randomValue());
+
+            //the snapshot sees the committed writes only
+            try (Snapshot snapshot = transaction.snapshot()) {
+                assertEquals(value, snapshot.get(key));
+                transaction.commit();
+                assertEquals(value, snapshot.get(key));
+            }
+        }
+    }
+
     @Test
     void rollback(@TempDir File data) throws IOException {
         final ByteBuffer key = randomKey();
@@ -0,0 +1,69 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WriteBatchTest extends TestBase {
+
+    @Test
+    void write(@TempDir File data) throws IOException {
+        final int amount = 100;
+
+        final List<ByteBuffer> keys = new ArrayList<>(amount);
+        final List<ByteBuffer> values = new ArrayList<>(amount);
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < amount; i++) {
+            keys.add(randomKey());
+            values.add(randomValue());
+            batch.upsert(keys.get(i), values.get(i));
+        }
+        //the last update of the key wins
+        batch.remove(keys.get(0));
+        batch.upsert(keys.get(1), values.get(0));
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.write(batch);
+            assertThrows(NoSuchElementException.class, () -> dao.get(keys.get(0)));
+            assertEquals(values.get(0), dao.get(keys.get(1)));
+            for (int i = 2; i < amount; i++) {
+                assertEquals(values.get(i), dao.get(keys.get(i)));
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(keys.get(0)));
+            assertEquals(values.get(0), dao.get(keys.get(1)));
+            for (int i = 2; i < amount; i++) {
+                assertEquals(values.get(i), dao.get(keys.get(i)));
+            }
+        }
+    }
+
+    @Test
+    void replayAfterCrash(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removedKey = randomKey();
+
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(removedKey, randomValue());
+        crashed.write(new WriteBatch()
+                .upsert(key, value)
+                .remove(removedKey));
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removedKey));
+        }
+    }
+}
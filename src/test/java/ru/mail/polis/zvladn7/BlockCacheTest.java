@@ -0,0 +1,149 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockCacheTest {
+
+    // The weight of a cached block including the overhead of the cache structures
+    private static final long BLOCK_WEIGHT = SSTable.BLOCK_SIZE + 96;
+    // The cache of this capacity has a single shard
+    private static final long CAPACITY = 64 * BLOCK_WEIGHT;
+
+    @Test
+    void capacityNeverExceeded() {
+        // The cache of this capacity is split into the shards, every one with its own part of the capacity
+        final long capacity = 4L * 1024 * 1024;
+        final BlockCache cache = new BlockCache(capacity, false);
+        final int amount = 4 * (int) (capacity / BLOCK_WEIGHT);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < amount; i++) {
+                read(cache, i % 3, i);
+                assertTrue(cache.sizeInBytes() <= capacity, "Cached " + cache.sizeInBytes() + " bytes");
+            }
+        }
+        assertTrue(cache.sizeInBytes() > capacity / 2);
+
+        final CacheStats stats = cache.getStats();
+        assertEquals(2L * amount, stats.getHits() + stats.getMisses());
+        assertTrue(stats.getEvictions() > 0);
+    }
+
+    @Test
+    void onceReadBlocksNotCached() {
+        final BlockCache cache = new BlockCache(CAPACITY, false);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(read(cache, 1, i));
+        }
+        assertEquals(0, cache.sizeInBytes());
+
+        // The block is copied on its second access and hit on the third one
+        assertFalse(read(cache, 1, 0));
+        assertEquals(BLOCK_WEIGHT, cache.sizeInBytes());
+        assertTrue(read(cache, 1, 0));
+        assertEquals(1, cache.getStats().getHits());
+        assertEquals(101, cache.getStats().getMisses());
+    }
+
+    @Test
+    void frequentBlocksSurviveScan() {
+        final BlockCache cache = new BlockCache(CAPACITY, false);
+        final int hot = 16;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < hot; i++) {
+                read(cache, 1, i);
+            }
+        }
+
+        // The scanned blocks are read twice, so they are admitted and compete with the frequent ones
+        for (int i = 0; i < 100 * hot; i++) {
+            read(cache, 2, i);
+            read(cache, 2, i);
+        }
+        assertTrue(cache.getStats().getEvictions() > 0);
+
+        for (int i = 0; i < hot; i++) {
+            assertTrue(read(cache, 1, i), "Block " + i + " is evicted");
+        }
+    }
+
+    @Test
+    void invalidateTable() {
+        final BlockCache cache = new BlockCache(CAPACITY, false);
+        final int amount = 10;
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < amount; i++) {
+                read(cache, 1, i);
+                read(cache, 2, i);
+            }
+        }
+        assertEquals(2 * amount * BLOCK_WEIGHT, cache.sizeInBytes());
+
+        cache.invalidate(1);
+        assertEquals(amount * BLOCK_WEIGHT, cache.sizeInBytes());
+        for (int i = 0; i < amount; i++) {
+            assertTrue(cache.get(1, offset(i)) == null);
+            assertTrue(cache.get(2, offset(i)) != null);
+        }
+    }
+
+    @Test
+    void closedTableInvalidated(@TempDir File data) throws IOException {
+        final File file = new File(data, "1.dat");
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            cells.add(new Cell(buffer(String.format("key%06d", i)), new Value(1, buffer("value " + i))));
+        }
+        new SSTableWriter(0, new WriteStats(), null, false).write(file, cells.iterator(), cells.size());
+
+        final BlockCache cache = new BlockCache(CAPACITY, false);
+        final SSTable table = new SSTable(file, 1, 0, 1, cache);
+        try {
+            for (int round = 0; round < 2; round++) {
+                for (final Cell cell : cells) {
+                    assertEquals(cell.getValue().getData(), table.get(cell.getKey(), Long.MAX_VALUE).getData());
+                }
+            }
+            assertTrue(cache.sizeInBytes() > 0);
+        } finally {
+            table.close();
+        }
+        assertEquals(0, cache.sizeInBytes());
+    }
+
+    /**
+     * Reads the block as the table does: from the cache or from the file, putting it to the cache.
+     * @return whether the block was cached.
+     */
+    private static boolean read(@NotNull final BlockCache cache, final long tableId, final int block) {
+        if (cache.get(tableId, offset(block)) != null) {
+            return true;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(SSTable.BLOCK_SIZE);
+        // The block of no entries
+        buffer.putInt(SSTable.BLOCK_SIZE - Integer.BYTES, 0);
+        cache.put(tableId, offset(block), buffer);
+        return false;
+    }
+
+    private static long offset(final int block) {
+        return (long) block * SSTable.BLOCK_SIZE;
+    }
+
+    @NotNull
+    private static ByteBuffer buffer(@NotNull final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
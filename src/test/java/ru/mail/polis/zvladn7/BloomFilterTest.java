@@ -0,0 +1,129 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTest {
+
+    private static final int AMOUNT = 10_000;
+    private static final int BITS_PER_KEY = 10;
+
+    @Test
+    void noFalseNegatives() {
+        final BloomFilter filter = BloomFilter.create(AMOUNT, BITS_PER_KEY);
+        for (int i = 0; i < AMOUNT; i++) {
+            filter.add(key(i));
+        }
+
+        // The filter read from its serialized form answers the same
+        final BloomFilter deserialized = new BloomFilter(filter.serialized());
+        for (int i = 0; i < AMOUNT; i++) {
+            assertTrue(filter.mightContain(BloomFilter.hash(key(i))));
+            assertTrue(deserialized.mightContain(BloomFilter.hash(key(i))));
+        }
+    }
+
+    @Test
+    void falsePositiveRate() {
+        final BloomFilter filter = BloomFilter.create(AMOUNT, BITS_PER_KEY);
+        for (int i = 0; i < AMOUNT; i++) {
+            filter.add(key(i));
+        }
+
+        int falsePositives = 0;
+        for (int i = AMOUNT; i < AMOUNT * 11; i++) {
+            if (filter.mightContain(BloomFilter.hash(key(i)))) {
+                falsePositives++;
+            }
+        }
+        // About 1% is expected for 10 bits per key
+        assertTrue(falsePositives < AMOUNT * 10 / 50, "False positives: " + falsePositives);
+    }
+
+    @Test
+    void hashOfRemainingBytes() {
+        final ByteBuffer key = key(42);
+        final ByteBuffer shifted = ByteBuffer.allocate(key.remaining() + 3);
+        shifted.position(3);
+        shifted.put(key.duplicate()).position(3);
+        final ByteBuffer littleEndian = key.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals(BloomFilter.hash(key), BloomFilter.hash(shifted));
+        assertEquals(BloomFilter.hash(key), BloomFilter.hash(littleEndian));
+        assertEquals(3, shifted.position());
+    }
+
+    @Test
+    void absentKeysSkipTables(@TempDir File data) throws IOException {
+        // Every table contains the even keys of the whole range, the odd ones are absent
+        final int tables = 3;
+        for (int table = 0; table < tables; table++) {
+            try (LsmDAOImpl dao = new LsmDAOImpl(data, 1024 * 1024)) {
+                for (int i = table * 2; i < AMOUNT; i += tables * 2) {
+                    dao.upsert(key(i), key(i));
+                }
+            }
+        }
+
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, 1024 * 1024)) {
+            final FilterStats stats = dao.getFilterStats();
+            for (int i = 1; i < AMOUNT; i += 2) {
+                final ByteBuffer key = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+            assertTrue(stats.getMisses() > 0);
+            assertEquals(stats.getHits(), stats.getFalsePositives());
+            assertTrue(stats.getFalsePositives() < stats.getMisses() / 20, stats.toString());
+
+            // The present key is found in the only table which contains it
+            assertEquals(key(2), dao.get(key(2)));
+            assertTrue(stats.getHits() > stats.getFalsePositives());
+        }
+    }
+
+    @Test
+    void tablesWithoutFilterCountedApart(@TempDir File data) throws IOException {
+        // The older table is written without the filter as the legacy ones are
+        final LsmDAOConfig unfiltered = LsmDAOConfig.builder().bloomFilterBitsPerKey(0).build();
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, 1024 * 1024, unfiltered)) {
+            for (int i = 0; i < AMOUNT; i += 4) {
+                dao.upsert(key(i), key(i));
+            }
+        }
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, 1024 * 1024)) {
+            for (int i = 2; i < AMOUNT; i += 4) {
+                dao.upsert(key(i), key(i));
+            }
+        }
+
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, 1024 * 1024)) {
+            final FilterStats stats = dao.getFilterStats();
+            for (int i = 1; i < AMOUNT; i += 2) {
+                final ByteBuffer key = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+            // Every lookup reads the table without the filter, but only the filtered one counts the checks
+            assertEquals(AMOUNT / 2, stats.getUnfiltered());
+            assertEquals(AMOUNT / 2, stats.getHits() + stats.getMisses());
+            assertEquals(stats.getHits(), stats.getFalsePositives());
+            assertTrue(stats.getFalsePositives() < stats.getMisses() / 20, stats.toString());
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%06d", i).getBytes(StandardCharsets.UTF_8));
+    }
+}
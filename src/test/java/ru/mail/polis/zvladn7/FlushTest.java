@@ -0,0 +1,144 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlushTest {
+
+    private static final int FLUSH_SIZE = 8 * 1024;
+    private static final int AMOUNT = 5000;
+
+    @Test
+    void readableWhileFlushing(@TempDir File data) throws IOException {
+        final LsmDAOConfig config = LsmDAOConfig.builder().maxImmutableMemtables(4).build();
+        final WriteStats stats;
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE, config)) {
+            stats = dao.getWriteStats();
+            for (int i = 0; i < AMOUNT; i++) {
+                dao.upsert(key(i), value(i));
+                // The frozen memory tables stay readable until their tables replace them
+                assertEquals(value(i), dao.get(key(i)));
+                assertEquals(value(i / 2), dao.get(key(i / 2)));
+            }
+            checkAll(dao);
+        }
+        assertTrue(stats.getTablesWritten() > 1);
+        // The compactions may have rewritten the flushed entries
+        assertTrue(stats.getEntriesWritten() >= AMOUNT);
+
+        // The log of the flushed tables isn't needed to restore the data
+        final String[] logs = data.list((dir, name) -> name.endsWith(".log"));
+        assertNotNull(logs);
+        assertEquals(0, logs.length);
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE, config)) {
+            checkAll(dao);
+        }
+    }
+
+    @Test
+    void writersWaitForSingleFlush(@TempDir File data) throws Exception {
+        final int threads = 4;
+        final LsmDAOConfig config = LsmDAOConfig.builder().maxImmutableMemtables(1).build();
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE, config)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    final int thread = t;
+                    futures.add(executor.submit(() -> {
+                        for (int i = thread; i < AMOUNT; i += threads) {
+                            dao.upsert(key(i), value(i));
+                        }
+                        return null;
+                    }));
+                }
+                for (final Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            checkAll(dao);
+        }
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE, config)) {
+            checkAll(dao);
+        }
+    }
+
+    @Test
+    void generationsReservedBeforeFiles(@TempDir File root) throws IOException {
+        // The manifest is never opened in the storage of the live DAO, since opening replaces it
+        final File data = new File(root, "data");
+        final File copy = new File(root, "copy");
+        assertTrue(data.mkdir());
+        assertTrue(copy.mkdir());
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE)) {
+            for (int i = 0; i < AMOUNT; i++) {
+                dao.upsert(key(i), value(i));
+                if (i % 500 != 0) {
+                    continue;
+                }
+
+                // The files are listed before the manifest is read, so it has reserved their generations
+                final String[] files = data.list((dir, name) -> name.endsWith(".dat") || name.endsWith(".tmp"));
+                assertNotNull(files);
+                Files.copy(new File(data, "MANIFEST").toPath(), new File(copy, "MANIFEST").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                final Manifest manifest = Manifest.open(copy);
+                try {
+                    for (final String file : files) {
+                        final int generation = Integer.parseInt(file.split("[._]")[0]);
+                        assertTrue(generation < manifest.getNextGeneration(), file);
+                    }
+                } finally {
+                    manifest.close();
+                }
+            }
+        }
+    }
+
+    private static void checkAll(@NotNull final LsmDAOImpl dao) {
+        final Iterator<Record> iter = dao.iterator(ByteBuffer.allocate(0));
+        for (int i = 0; i < AMOUNT; i++) {
+            final Record record = iter.next();
+            assertEquals(key(i), record.getKey());
+            assertEquals(value(i), record.getValue());
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return buffer(String.format("key%06d", i));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i) {
+        return buffer("value of the key " + i);
+    }
+
+    @NotNull
+    private static ByteBuffer buffer(@NotNull final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,77 @@
+package ru.mail.polis.zvladn7;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IoRateLimiterTest {
+
+    private static final long RATE = 1024 * 1024;
+    private static final long CHUNK = 64 * 1024;
+    private static final long BURST = RATE * IoRateLimiter.BURST_NANOS / TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void backgroundThroughputBound() {
+        final IoRateLimiter limiter = new IoRateLimiter(RATE, 0);
+        final long bytes = 8 * CHUNK;
+        final long start = System.nanoTime();
+        for (long written = 0; written < bytes; written += CHUNK) {
+            limiter.acquire(CHUNK, true);
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        // Only the burst is written without waiting
+        assertTrue(elapsed >= (bytes - BURST) * TimeUnit.SECONDS.toNanos(1) / RATE);
+    }
+
+    @Test
+    void foregroundNeverWaits() {
+        final IoRateLimiter limiter = new IoRateLimiter(RATE, 0);
+        final long debt = RATE / 4;
+        final long start = System.nanoTime();
+        limiter.acquire(BURST + debt, false);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1) * debt / RATE);
+
+        // The foreground bytes are taken from the same bucket, so the background repays the debt
+        limiter.acquire(1, true);
+        assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1) * debt / RATE);
+    }
+
+    @Test
+    void backgroundPausesForForeground() {
+        final IoRateLimiter limiter = new IoRateLimiter(RATE, 0);
+        final long operation = limiter.beginForeground();
+        final long start = System.nanoTime();
+        limiter.acquire(1, true);
+
+        // The pause is bounded, so the compactions make progress under a steady read load
+        assertTrue(System.nanoTime() - start >= IoRateLimiter.MAX_PAUSE_NANOS);
+        limiter.endForeground(operation);
+    }
+
+    @Test
+    void rateTunedByLatency() {
+        final AtomicLong clock = new AtomicLong();
+        final IoRateLimiter limiter = new IoRateLimiter(RATE, 1, clock::get);
+        final long operation = limiter.beginForeground();
+        clock.addAndGet(1000);
+        limiter.endForeground(operation);
+
+        // The rate is tuned once per interval
+        clock.addAndGet(IoRateLimiter.TUNE_INTERVAL_NANOS - 1000 - 1);
+        limiter.acquire(0, false);
+        assertEquals(RATE, limiter.getBytesPerSecond());
+        clock.incrementAndGet();
+        limiter.acquire(0, false);
+        assertEquals(RATE / 2, limiter.getBytesPerSecond());
+
+        // Without the slow reads the rate recovers by steps
+        clock.addAndGet(IoRateLimiter.TUNE_INTERVAL_NANOS);
+        limiter.acquire(0, false);
+        assertEquals(RATE / 2 + RATE / 20, limiter.getBytesPerSecond());
+    }
+}
@@ -0,0 +1,142 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LeveledCompactionPolicyTest {
+
+    private static final long TABLE_SIZE = 100;
+    private static final long LEVEL1_SIZE = 4 * TABLE_SIZE;
+    private static final int MULTIPLIER = 10;
+
+    private final CompactionPolicy policy = new LeveledCompactionPolicy(4, TABLE_SIZE, LEVEL1_SIZE, MULTIPLIER, 4);
+
+    @Test
+    void levelZeroTrigger() {
+        final List<TableInfo> tables = new ArrayList<>();
+        tables.add(table(1, 1, TABLE_SIZE, "a", "c"));
+        tables.add(table(2, 1, TABLE_SIZE, "d", "f"));
+        tables.add(table(3, 1, TABLE_SIZE, "x", "z"));
+        for (int generation = 4; generation < 7; generation++) {
+            tables.add(table(generation, 0, 10, "b", "e"));
+        }
+        assertNull(policy.pickCompaction(tables));
+
+        // All level 0 tables go to level 1 together with the level 1 tables they overlap
+        tables.add(table(7, 0, 10, "b", "e"));
+        final Compaction compaction = policy.pickCompaction(tables);
+        assertNotNull(compaction);
+        assertEquals(1, compaction.getOutputLevel());
+        assertEquals(TABLE_SIZE, compaction.getMaxOutputTableSize());
+        assertEquals(Set.of(1, 2, 4, 5, 6, 7), generations(compaction));
+    }
+
+    @Test
+    void levelTargets() {
+        final List<TableInfo> tables = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            tables.add(table(i + 1, 1, TABLE_SIZE, "k" + i + "a", "k" + i + "z"));
+        }
+        // Level 1 exactly at its target isn't compacted
+        assertNull(policy.pickCompaction(tables));
+
+        // The table which overlaps nothing in level 2 is moved down without rewriting level 2
+        tables.add(table(5, 1, TABLE_SIZE, "k4a", "k4z"));
+        tables.add(0, table(6, 2, TABLE_SIZE, "k0a", "k3z"));
+        final Compaction compaction = policy.pickCompaction(tables);
+        assertNotNull(compaction);
+        assertEquals(2, compaction.getOutputLevel());
+        assertEquals(Set.of(5), generations(compaction));
+    }
+
+    @Test
+    void mostOverflowingLevel() {
+        // Level 2 is twice as big as its target, level 1 is 1.25 times
+        final List<TableInfo> tables = new ArrayList<>();
+        tables.add(table(8, 3, TABLE_SIZE, "c0", "c1"));
+        tables.add(table(9, 3, TABLE_SIZE, "z0", "z1"));
+        tables.add(table(6, 2, LEVEL1_SIZE * MULTIPLIER, "b0", "b5"));
+        tables.add(table(7, 2, LEVEL1_SIZE * MULTIPLIER, "c0", "c5"));
+        for (int i = 0; i < 5; i++) {
+            tables.add(table(i + 1, 1, TABLE_SIZE, "a" + i, "a" + i));
+        }
+
+        final Compaction compaction = policy.pickCompaction(tables);
+        assertNotNull(compaction);
+        assertEquals(3, compaction.getOutputLevel());
+        assertEquals(Set.of(6), generations(compaction));
+    }
+
+    @Test
+    void lastLevelStays() {
+        final List<TableInfo> tables = new ArrayList<>();
+        tables.add(table(1, 3, LEVEL1_SIZE * MULTIPLIER * MULTIPLIER * 2, "a", "z"));
+        assertNull(policy.pickCompaction(tables));
+    }
+
+    @Test
+    void widensToOverlappingTables() {
+        // The level 2 table under the picked one widens the range to the next level 1 table and its overlaps
+        final List<TableInfo> tables = new ArrayList<>();
+        tables.add(table(6, 2, TABLE_SIZE / 10, "k0a", "k1b"));
+        tables.add(table(7, 2, TABLE_SIZE * 10, "k1c", "k1z"));
+        tables.add(table(8, 2, TABLE_SIZE * 10, "k2a", "k4z"));
+        for (int i = 0; i < 5; i++) {
+            tables.add(table(i + 1, 1, TABLE_SIZE, "k" + i + "a", "k" + i + "z"));
+        }
+
+        final Compaction compaction = policy.pickCompaction(tables);
+        assertNotNull(compaction);
+        assertEquals(2, compaction.getOutputLevel());
+        assertEquals(Set.of(1, 2, 6, 7), generations(compaction));
+    }
+
+    @Test
+    void fullCompaction() {
+        // All the tables are merged into the deepest level
+        final List<TableInfo> tables = List.of(
+                table(2, 2, TABLE_SIZE, "a", "z"),
+                table(1, 0, 10, "a", "b"));
+        final Compaction compaction = policy.fullCompaction(tables);
+        assertEquals(2, compaction.getOutputLevel());
+        assertEquals(Set.of(1, 2), generations(compaction));
+
+        // The level 0 tables alone are merged into level 1
+        assertEquals(1, policy.fullCompaction(List.of(table(1, 0, 10, "a", "b"))).getOutputLevel());
+    }
+
+    @NotNull
+    static TableInfo table(
+            final int generation,
+            final int level,
+            final long size,
+            @NotNull final String minKey,
+            @NotNull final String maxKey) {
+        return new TableInfo(generation, level, size, 1, buffer(minKey), buffer(maxKey));
+    }
+
+    @NotNull
+    static Set<Integer> generations(@NotNull final Compaction compaction) {
+        final Set<Integer> generations = new HashSet<>();
+        for (final TableInfo input : compaction.getInputs()) {
+            generations.add(input.getGeneration());
+        }
+        return generations;
+    }
+
+    @NotNull
+    private static ByteBuffer buffer(@NotNull final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
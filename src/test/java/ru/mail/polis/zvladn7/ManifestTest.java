@@ -0,0 +1,119 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ManifestTest {
+
+    private static final int GENERATION = 10;
+    private static final long SEQUENCE = 42;
+
+    @Test
+    void reopen(@TempDir File data) throws IOException {
+        createManifest(data);
+
+        final Manifest manifest = Manifest.open(data);
+        try {
+            checkManifest(manifest);
+        } finally {
+            manifest.close();
+        }
+    }
+
+    @Test
+    void tornEditSkipped(@TempDir File data) throws IOException {
+        createManifest(data);
+
+        // The edit is cut by the crash in the middle of the write
+        final ByteBuffer edit = edit(0);
+        append(data, edit.limit(edit.limit() - 1));
+        final Manifest manifest = Manifest.open(data);
+        try {
+            checkManifest(manifest);
+        } finally {
+            manifest.close();
+        }
+    }
+
+    @Test
+    void malformedEditRejected(@TempDir File data) throws IOException {
+        createManifest(data);
+
+        // The checksum is valid, but the edit has the extra byte after the ranks
+        append(data, edit(1));
+        assertThrows(IOException.class, () -> Manifest.open(data));
+    }
+
+    @Test
+    void negativeAmountRejected(@TempDir File data) throws IOException {
+        createManifest(data);
+
+        final ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES * 3 + Long.BYTES)
+                .putInt(GENERATION)
+                .putInt(-1)
+                .putInt(0)
+                .putLong(SEQUENCE);
+        append(data, record(payload));
+        assertThrows(IOException.class, () -> Manifest.open(data));
+    }
+
+    private static void createManifest(@NotNull final File data) throws IOException {
+        final ByteBuffer key = ByteBuffer.wrap("key".getBytes(StandardCharsets.UTF_8));
+        final Manifest.TableEntry table = new Manifest.TableEntry(1, 0, 1, key, key);
+        final Manifest manifest = Manifest.create(data, Collections.emptyList(), 1, 0);
+        try {
+            manifest.commit(Collections.singletonList(table), Collections.emptyList(), GENERATION, SEQUENCE);
+        } finally {
+            manifest.close();
+        }
+    }
+
+    private static void checkManifest(@NotNull final Manifest manifest) {
+        assertEquals(1, manifest.tables().size());
+        assertEquals(1, manifest.tables().get(0).getGeneration());
+        assertEquals(GENERATION, manifest.getNextGeneration());
+        assertEquals(SEQUENCE, manifest.getLastSequence());
+    }
+
+    /**
+     * Returns the edit which adds and removes nothing followed by the given amount of the extra bytes.
+     */
+    private static ByteBuffer edit(final int extraBytes) {
+        final ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES * 3 + Long.BYTES + extraBytes)
+                .putInt(GENERATION)
+                .putInt(0)
+                .putInt(0)
+                .putLong(SEQUENCE);
+        return record(payload);
+    }
+
+    private static ByteBuffer record(@NotNull final ByteBuffer payload) {
+        payload.position(payload.capacity()).flip();
+        final CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        final ByteBuffer record = ByteBuffer.allocate(Integer.BYTES * 2 + payload.remaining())
+                .putInt(payload.remaining())
+                .putInt((int) crc.getValue())
+                .put(payload);
+        return record.flip();
+    }
+
+    private static void append(@NotNull final File data, @NotNull final ByteBuffer record) throws IOException {
+        final byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        Files.write(new File(data, "MANIFEST").toPath(), bytes, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,62 @@
+package ru.mail.polis.zvladn7;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedFileTest {
+
+    private static final int FILE_SIZE = 1000;
+    private static final int CHUNK_SIZE = 64;
+
+    @Test
+    void readsAcrossChunks(@TempDir File data) throws IOException {
+        final File file = new File(data, "mapped");
+        final byte[] content = new byte[FILE_SIZE];
+        ThreadLocalRandom.current().nextBytes(content);
+        Files.write(file.toPath(), content);
+        final ByteBuffer expected = ByteBuffer.wrap(content);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedFile mappedFile = new MappedFile(channel, CHUNK_SIZE);
+            assertEquals(FILE_SIZE, mappedFile.size());
+
+            // Every position including the ones which values cross the border of the chunks
+            for (int position = 0; position + Long.BYTES <= FILE_SIZE; position++) {
+                assertEquals(expected.getInt(position), mappedFile.getInt(position));
+                assertEquals(expected.getLong(position), mappedFile.getLong(position));
+            }
+            for (int position = 0; position < FILE_SIZE; position += 7) {
+                final int length = Math.min(3 * CHUNK_SIZE, FILE_SIZE - position);
+                assertEquals(expected.duplicate().position(position).limit(position + length).slice(),
+                        mappedFile.slice(position, length));
+            }
+        }
+    }
+
+    @Test
+    void slicesMapping(@TempDir File data) throws IOException {
+        final File file = new File(data, "mapped");
+        Files.write(file.toPath(), new byte[FILE_SIZE]);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedFile mappedFile = new MappedFile(channel);
+
+            // A region inside a chunk isn't copied to the heap
+            final ByteBuffer slice = mappedFile.slice(100, 200);
+            assertTrue(slice.isDirect());
+            assertTrue(slice.isReadOnly());
+            assertEquals(200, slice.remaining());
+        }
+    }
+}
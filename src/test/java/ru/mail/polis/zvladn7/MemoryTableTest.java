@@ -0,0 +1,146 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemoryTableTest {
+
+    private static final int THREADS = 8;
+    private static final int KEYS_PER_THREAD = 5000;
+    //every thread writes the shared keys as well as its own ones
+    private static final int SHARED_KEYS = 1000;
+
+    @Test
+    void concurrentPuts() throws Exception {
+        final MemoryTable table = new MemoryTable();
+        final AtomicLong sequence = new AtomicLong();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                        table.put(key(thread * KEYS_PER_THREAD + i), new Value(sequence.incrementAndGet(), value()));
+                        table.put(sharedKey(i % SHARED_KEYS), new Value(sequence.incrementAndGet(), value()));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // The counters are the same as if the keys were put by one thread
+        final MemoryTable expected = new MemoryTable();
+        for (int i = 0; i < THREADS * KEYS_PER_THREAD; i++) {
+            expected.put(key(i), new Value(1, value()));
+        }
+        for (int i = 0; i < SHARED_KEYS; i++) {
+            expected.put(sharedKey(i), new Value(1, value()));
+        }
+        assertEquals(expected.size(), table.size());
+        assertEquals(expected.getAmountOfBytes(), table.getAmountOfBytes());
+
+        // Every key is iterated once and in order
+        final Iterator<Cell> iter = table.iterator(ByteBuffer.allocate(0), null);
+        ByteBuffer previous = null;
+        int amount = 0;
+        while (iter.hasNext()) {
+            final Cell cell = iter.next();
+            assertTrue(previous == null || previous.compareTo(cell.getKey()) < 0);
+            previous = cell.getKey();
+            amount++;
+        }
+        assertEquals(table.size(), amount);
+    }
+
+    @Test
+    void iterateWhileWriting() throws Exception {
+        final MemoryTable table = new MemoryTable();
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread writer = new Thread(() -> {
+            for (int i = 0; i < THREADS * KEYS_PER_THREAD; i++) {
+                table.put(key(i * 7919 % (THREADS * KEYS_PER_THREAD)), new Value(i, value()));
+            }
+            done.set(true);
+        });
+        writer.start();
+
+        // The iterators never fail and always see the sorted keys
+        do {
+            final Iterator<Cell> iter = table.iterator(ByteBuffer.allocate(0), null);
+            ByteBuffer previous = null;
+            while (iter.hasNext()) {
+                final ByteBuffer key = iter.next().getKey();
+                assertTrue(previous == null || previous.compareTo(key) < 0);
+                previous = key;
+            }
+        } while (!done.get());
+        writer.join();
+        assertEquals(THREADS * KEYS_PER_THREAD, table.size());
+    }
+
+    @Test
+    void versionsForSnapshots() {
+        final MemoryTable table = new MemoryTable();
+        final ByteBuffer key = key(0);
+        table.put(key, new Value(1, buffer("first")), Long.MAX_VALUE);
+        table.put(key, new Value(2, buffer("second")), 1);
+        table.put(key, Value.newTombstoneValue(3), 1);
+
+        // The version seen by the snapshot 1 and the newer ones are kept
+        assertEquals(buffer("first"), table.get(key, 1).getData());
+        assertEquals(buffer("second"), table.get(key, 2).getData());
+        assertTrue(table.get(key, Long.MAX_VALUE).isTombstone());
+        assertNull(table.get(key, 0));
+
+        // The older versions are dropped once no snapshot sees them
+        table.put(key, new Value(4, buffer("fourth")), Long.MAX_VALUE);
+        assertNull(table.get(key, 3));
+        assertEquals(buffer("fourth"), table.get(key, Long.MAX_VALUE).getData());
+        assertEquals(1, table.size());
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return buffer(String.format("key%06d", i));
+    }
+
+    @NotNull
+    private static ByteBuffer sharedKey(final int i) {
+        return buffer(String.format("shared%06d", i));
+    }
+
+    @NotNull
+    private static ByteBuffer value() {
+        return buffer("value");
+    }
+
+    @NotNull
+    private static ByteBuffer buffer(@NotNull final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
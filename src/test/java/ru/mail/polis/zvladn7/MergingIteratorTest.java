@@ -0,0 +1,119 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Record;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class MergingIteratorTest {
+
+    @Test
+    void newestVersionWins() {
+        final List<Iterator<Cell>> newestFirst = List.of(
+                List.of(cell("a", 5, "new"), cell("c", 6, "new")).iterator(),
+                List.of(cell("a", 2, "old"), cell("b", 1, "old")).iterator());
+        final Iterator<Record> records = MergingIterator.records(newestFirst, false, Long.MAX_VALUE);
+        assertRecord("a", "new", records.next());
+        assertRecord("b", "old", records.next());
+        assertRecord("c", "new", records.next());
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void newestTableWinsForEqualSequences() {
+        // The legacy tables have the timestamps, which may be equal
+        final List<Iterator<Cell>> newestFirst = List.of(
+                List.of(cell("a", 1, "new")).iterator(),
+                List.of(cell("a", 1, "old")).iterator());
+        final Iterator<Record> records = MergingIterator.records(newestFirst, false, Long.MAX_VALUE);
+        assertRecord("a", "new", records.next());
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void tombstonesSkipped() {
+        final List<Iterator<Cell>> newestFirst = List.of(
+                List.of(tombstone("a", 5), cell("b", 6, "new")).iterator(),
+                List.of(cell("a", 2, "old")).iterator());
+        final Iterator<Record> records = MergingIterator.records(newestFirst, false, Long.MAX_VALUE);
+        assertRecord("b", "new", records.next());
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void newerVersionsHidden() {
+        final List<Iterator<Cell>> newestFirst = List.of(
+                List.of(tombstone("a", 5), cell("b", 4, "new"), cell("c", 6, "new")).iterator(),
+                List.of(cell("a", 2, "old"), cell("b", 3, "old")).iterator());
+
+        // The snapshot sees the older versions through the newer ones, including the tombstones
+        final Iterator<Record> records = MergingIterator.records(newestFirst, false, 3);
+        assertRecord("a", "old", records.next());
+        assertRecord("b", "old", records.next());
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void versionsForSeveralSequences() {
+        final List<Cell> shadowed = new ArrayList<>();
+        final MergingIterator cells = new MergingIterator(
+                List.of(List.of(cell("a", 5, "5"), cell("a", 4, "4")).iterator(),
+                        List.of(cell("a", 2, "2"), cell("a", 1, "1")).iterator()),
+                false,
+                new long[]{Long.MAX_VALUE, 3},
+                false,
+                shadowed::add);
+
+        // Every sequence keeps the newest version it sees, the versions between them are shadowed
+        assertEquals(5, cells.next().getValue().getSequence());
+        assertEquals(2, cells.next().getValue().getSequence());
+        assertFalse(cells.hasNext());
+        assertEquals(2, shadowed.size());
+        assertEquals(4, shadowed.get(0).getValue().getSequence());
+        assertEquals(1, shadowed.get(1).getValue().getSequence());
+    }
+
+    @Test
+    void descendingMerge() {
+        // The keys go in reverse, the versions of a key still go from the newest one
+        final List<Iterator<Cell>> newestFirst = List.of(
+                List.of(cell("c", 6, "new"), cell("a", 5, "new")).iterator(),
+                List.of(cell("b", 1, "old"), cell("a", 2, "old")).iterator());
+        final Iterator<Record> records = MergingIterator.records(newestFirst, true, Long.MAX_VALUE);
+        assertRecord("c", "new", records.next());
+        assertRecord("b", "old", records.next());
+        assertRecord("a", "new", records.next());
+        assertFalse(records.hasNext());
+    }
+
+    private static void assertRecord(
+            @NotNull final String key,
+            @NotNull final String value,
+            @NotNull final Record record) {
+        assertEquals(buffer(key), record.getKey());
+        assertEquals(buffer(value), record.getValue());
+    }
+
+    @NotNull
+    private static Cell cell(@NotNull final String key, final long sequence, @NotNull final String value) {
+        return new Cell(buffer(key), new Value(sequence, buffer(value)));
+    }
+
+    @NotNull
+    private static Cell tombstone(@NotNull final String key, final long sequence) {
+        return new Cell(buffer(key), Value.newTombstoneValue(sequence));
+    }
+
+    @NotNull
+    private static ByteBuffer buffer(@NotNull final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,93 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PointLookupTest {
+
+    private static final int FLUSH_SIZE = 1024 * 1024;
+    private static final ByteBuffer KEY = buffer("key");
+
+    @Test
+    void newestTableWins(@TempDir File data) throws IOException {
+        // Every round writes a table with a newer version of the key
+        for (int round = 0; round < 3; round++) {
+            try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE)) {
+                dao.upsert(KEY, value(round));
+            }
+        }
+
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE)) {
+            final FilterStats stats = dao.getFilterStats();
+            assertEquals(value(2), dao.get(KEY));
+
+            // The lookup stops at the newest table, the older ones aren't probed
+            assertEquals(1, stats.getHits());
+            assertEquals(0, stats.getMisses());
+
+            // The memory table is probed before the tables
+            dao.upsert(KEY, value(3));
+            assertEquals(value(3), dao.get(KEY));
+            assertEquals(1, stats.getHits());
+        }
+    }
+
+    @Test
+    void tombstoneStopsLookup(@TempDir File data) throws IOException {
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE)) {
+            dao.upsert(KEY, value(0));
+        }
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE)) {
+            dao.remove(KEY);
+        }
+
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE)) {
+            final FilterStats stats = dao.getFilterStats();
+            assertThrows(NoSuchElementException.class, () -> dao.get(KEY));
+            assertEquals(1, stats.getHits());
+
+            // The tombstone in the memory table hides the tables
+            dao.upsert(KEY, value(1));
+            dao.remove(KEY);
+            assertThrows(NoSuchElementException.class, () -> dao.get(KEY));
+            assertEquals(1, stats.getHits());
+        }
+    }
+
+    @Test
+    void snapshotSkipsNewerTables(@TempDir File data) throws IOException {
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE)) {
+            dao.upsert(KEY, value(0));
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.upsert(KEY, value(1));
+                dao.compact();
+                dao.upsert(KEY, value(2));
+
+                // The newer versions of the memory table and the table are skipped
+                assertEquals(value(0), snapshot.get(KEY));
+                assertEquals(value(2), dao.get(KEY));
+            }
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int version) {
+        return buffer("value" + version);
+    }
+
+    @NotNull
+    private static ByteBuffer buffer(@NotNull final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
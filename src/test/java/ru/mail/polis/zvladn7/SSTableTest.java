@@ -0,0 +1,240 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SSTableTest {
+
+    private static final int AMOUNT = 2000;
+    private static final long SEQUENCE = 42;
+
+    @Test
+    void sparseIndex(@TempDir File data) throws IOException {
+        final File file = new File(data, "1.dat");
+        write(file, cells(AMOUNT), 10);
+
+        final SSTable table = new SSTable(file, 1, 0, 1, null);
+        try {
+            assertEquals(AMOUNT, table.size());
+            assertEquals(key(0), table.getMinKey());
+            assertEquals(key(AMOUNT - 1), table.getMaxKey());
+
+            // The index has an entry per block rather than per key
+            final int amountOfBlocks = table.sampleKeys().size() + 1;
+            assertTrue(amountOfBlocks > 1);
+            assertTrue(amountOfBlocks < AMOUNT / 10);
+
+            for (int i = 0; i < AMOUNT; i++) {
+                assertEquals(value(i), table.get(key(i), Long.MAX_VALUE).getData());
+                // The keys between the stored ones, including the block separators, are absent
+                assertNull(table.get(join(key(i), "-"), Long.MAX_VALUE));
+            }
+            assertNull(table.get(key(0), SEQUENCE - 1));
+
+            final Iterator<Cell> iter = table.iterator(key(AMOUNT / 2), key(AMOUNT / 2 + 100));
+            for (int i = AMOUNT / 2; i < AMOUNT / 2 + 100; i++) {
+                assertEquals(key(i), iter.next().getKey());
+            }
+            assertFalse(iter.hasNext());
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void footerAndMetaIndex(@TempDir File data) throws IOException {
+        final File filtered = new File(data, "1.dat");
+        write(filtered, cells(AMOUNT), 10);
+        final File unfiltered = new File(data, "2.dat");
+        write(unfiltered, cells(AMOUNT), 0);
+
+        assertEquals(List.of(SSTable.INDEX_SECTION, SSTable.FILTER_SECTION), sections(filtered));
+        assertEquals(List.of(SSTable.INDEX_SECTION), sections(unfiltered));
+
+        final SSTable table = new SSTable(unfiltered, 2, 0, 2, null);
+        try {
+            // The table without the filter might contain any key
+            assertTrue(table.mightContain(BloomFilter.hash(join(key(0), "-"))));
+            assertEquals(value(0), table.get(key(0), Long.MAX_VALUE).getData());
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void unsupportedVersion(@TempDir File data) throws IOException {
+        final File file = new File(data, "1.dat");
+        write(file, cells(10), 10);
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final ByteBuffer footer = ByteBuffer.wrap(content, content.length - SSTable.FOOTER_SIZE, SSTable.FOOTER_SIZE);
+        footer.putInt(footer.position() + Long.BYTES + Integer.BYTES * 2, SSTable.VERSION + 1);
+        Files.write(file.toPath(), content);
+
+        assertThrows(IOException.class, () -> new SSTable(file, 1, 0, 1, null));
+    }
+
+    @Test
+    void legacyFile(@TempDir File data) throws IOException {
+        final File file = new File(data, "1.dat");
+        writeLegacy(file, AMOUNT);
+
+        final SSTable table = new SSTable(file, 1, 0, 1, null);
+        try {
+            assertEquals(AMOUNT, table.size());
+            assertEquals(key(0), table.getMinKey());
+            assertEquals(key(AMOUNT - 1), table.getMaxKey());
+            assertTrue(table.sampleKeys().isEmpty());
+            for (int i = 0; i < AMOUNT; i++) {
+                final Value value = table.get(key(i), Long.MAX_VALUE);
+                if (i % 10 == 0) {
+                    assertTrue(value.isTombstone());
+                } else {
+                    assertEquals(value(i), value.getData());
+                }
+            }
+            assertNull(table.get(join(key(0), "-"), Long.MAX_VALUE));
+
+            final Iterator<Cell> iter = table.iterator(key(10), null);
+            for (int i = 10; i < AMOUNT; i++) {
+                assertEquals(key(i), iter.next().getKey());
+            }
+            assertFalse(iter.hasNext());
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void legacyDataDirectory(@TempDir File data) throws IOException {
+        writeLegacy(new File(data, "1.dat"), AMOUNT);
+
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, 1024 * 1024)) {
+            assertEquals(value(1), dao.get(key(1)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+            dao.upsert(key(1), value(2));
+            dao.compact();
+        }
+
+        // The compaction rewrites the data in the current format
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assertNotNull(files);
+        assertTrue(files.length > 0);
+        for (final File file : files) {
+            assertEquals(List.of(SSTable.INDEX_SECTION, SSTable.FILTER_SECTION), sections(file, -1));
+        }
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, 1024 * 1024)) {
+            assertEquals(value(2), dao.get(key(1)));
+            assertEquals(value(3), dao.get(key(3)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+        }
+    }
+
+    private static void write(
+            @NotNull final File file,
+            @NotNull final List<Cell> cells,
+            final int bitsPerKey) throws IOException {
+        new SSTableWriter(bitsPerKey, new WriteStats(), null, false).write(file, cells.iterator(), cells.size());
+    }
+
+    /**
+     * Writes the table in the format of version 1: [ rows ] [ rows offset ] amount of rows.
+     * Row structure is key size | key | timestamp | value size | value, tombstones have the value size -1.
+     */
+    private static void writeLegacy(@NotNull final File file, final int amount) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        final List<Integer> offsets = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            offsets.add(buffer.position());
+            final ByteBuffer key = key(i);
+            buffer.putInt(key.remaining()).put(key).putLong(SEQUENCE);
+            if (i % 10 == 0) {
+                buffer.putInt(-1);
+            } else {
+                final ByteBuffer value = value(i);
+                buffer.putInt(value.remaining()).put(value);
+            }
+        }
+        for (final int offset : offsets) {
+            buffer.putInt(offset);
+        }
+        buffer.putInt(offsets.size());
+        Files.write(file.toPath(), Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    @NotNull
+    private static List<Integer> sections(@NotNull final File file) throws IOException {
+        return sections(file, AMOUNT);
+    }
+
+    /**
+     * Returns the types of the sections listed in the meta index the footer points to.
+     * @param amount - the expected amount of rows or -1 if it isn't checked.
+     */
+    @NotNull
+    private static List<Integer> sections(@NotNull final File file, final int amount) throws IOException {
+        final ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        final int footer = content.limit() - SSTable.FOOTER_SIZE;
+        assertEquals(SSTable.MAGIC, content.getLong(content.limit() - Long.BYTES));
+        assertEquals(SSTable.VERSION, content.getInt(footer + Long.BYTES + Integer.BYTES * 2));
+        if (amount >= 0) {
+            assertEquals(amount, content.getInt(footer + Long.BYTES + Integer.BYTES));
+        }
+
+        final int metaIndex = (int) content.getLong(footer);
+        assertEquals(footer - metaIndex, content.getInt(footer + Long.BYTES));
+        final List<Integer> types = new ArrayList<>();
+        for (int i = 0; i < content.getInt(metaIndex); i++) {
+            final int entry = metaIndex + Integer.BYTES + i * SSTable.META_INDEX_ENTRY_SIZE;
+            final long offset = content.getLong(entry + Integer.BYTES);
+            final int size = content.getInt(entry + Integer.BYTES + Long.BYTES);
+            assertTrue(offset >= 0 && offset + size <= metaIndex);
+            types.add(content.getInt(entry));
+        }
+        return types;
+    }
+
+    @NotNull
+    private static List<Cell> cells(final int amount) {
+        final List<Cell> cells = new ArrayList<>(amount);
+        for (int i = 0; i < amount; i++) {
+            cells.add(new Cell(key(i), new Value(SEQUENCE, value(i))));
+        }
+        return cells;
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%06d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value of the key number " + i + " which makes the blocks fill up sooner")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer join(@NotNull final ByteBuffer key, @NotNull final String suffix) {
+        final byte[] bytes = suffix.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(key.remaining() + bytes.length).put(key.duplicate()).put(bytes).flip();
+    }
+}
@@ -0,0 +1,133 @@
+package ru.mail.polis.zvladn7;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SSTableWriterTest {
+
+    private static final int AMOUNT = 10_000;
+    private static final int VERSIONS = 3;
+
+    @Test
+    void reusedWriter(@TempDir File data) throws IOException {
+        final WriteStats stats = new WriteStats();
+        final SSTableWriter writer = new SSTableWriter(10, stats, null, false);
+        final File first = new File(data, "1.dat");
+        final File second = new File(data, "2.dat");
+        writer.write(first, cells(0, AMOUNT).iterator(), AMOUNT);
+        writer.write(second, cells(AMOUNT, AMOUNT / 2).iterator(), AMOUNT / 2);
+
+        assertEquals(2, stats.getTablesWritten());
+        assertEquals(AMOUNT + AMOUNT / 2, stats.getEntriesWritten());
+        assertEquals(first.length() + second.length(), stats.getBytesWritten());
+        assertTrue(stats.getWriteNanos() > 0);
+
+        checkTable(first, 0, AMOUNT);
+        checkTable(second, AMOUNT, AMOUNT / 2);
+    }
+
+    @Test
+    void valueLargerThanBuffer(@TempDir File data) throws IOException {
+        final ByteBuffer value = ByteBuffer.allocate(3 * 1024 * 1024);
+        ThreadLocalRandom.current().nextBytes(value.array());
+        final List<Cell> cells = new ArrayList<>(cells(0, 10));
+        cells.set(5, new Cell(key(5), new Value(1, value)));
+
+        final File file = new File(data, "1.dat");
+        new SSTableWriter(10, new WriteStats(), null, false).write(file, cells.iterator(), cells.size());
+
+        final SSTable table = new SSTable(file, 1, 0, 1, null);
+        try {
+            assertEquals(value, table.get(key(5), Long.MAX_VALUE).getData());
+            assertEquals(value(6), table.get(key(6), Long.MAX_VALUE).getData());
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void versionsNotSplitBetweenTables(@TempDir File data) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < AMOUNT; i++) {
+            for (int version = VERSIONS; version > 0; version--) {
+                cells.add(new Cell(key(i), new Value(version, value(i))));
+            }
+        }
+
+        // The tables are cut by size, every one starts at the newest version of a key
+        final SSTableWriter writer = new SSTableWriter(10, new WriteStats(), null, false);
+        final PeekingIterator<Cell> iter = Iterators.peekingIterator(cells.iterator());
+        int amount = 0;
+        int generation = 0;
+        while (iter.hasNext()) {
+            final File file = new File(data, ++generation + ".dat");
+            writer.write(file, iter, cells.size(), 64 * 1024);
+            final SSTable table = new SSTable(file, generation, 1, generation, null);
+            try {
+                assertEquals(0, table.size() % VERSIONS);
+                final Iterator<Cell> tableIter = table.iterator(ByteBuffer.allocate(0), null);
+                while (tableIter.hasNext()) {
+                    final Cell cell = tableIter.next();
+                    assertEquals(cells.get(amount).getKey(), cell.getKey());
+                    assertEquals(cells.get(amount).getValue().getSequence(), cell.getValue().getSequence());
+                    amount++;
+                }
+            } finally {
+                table.close();
+            }
+        }
+        assertTrue(generation > 1);
+        assertEquals(cells.size(), amount);
+    }
+
+    private static void checkTable(@NotNull final File file, final int from, final int amount) throws IOException {
+        final SSTable table = new SSTable(file, 1, 0, 1, null);
+        try {
+            assertEquals(amount, table.size());
+            final Iterator<Cell> iter = table.iterator(ByteBuffer.allocate(0), null);
+            for (int i = from; i < from + amount; i++) {
+                final Cell cell = iter.next();
+                assertEquals(key(i), cell.getKey());
+                assertEquals(value(i), cell.getValue().getData());
+            }
+            assertFalse(iter.hasNext());
+        } finally {
+            table.close();
+        }
+    }
+
+    @NotNull
+    private static List<Cell> cells(final int from, final int amount) {
+        final List<Cell> cells = new ArrayList<>(amount);
+        for (int i = from; i < from + amount; i++) {
+            cells.add(new Cell(key(i), new Value(1, value(i))));
+        }
+        return cells;
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%06d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value" + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,115 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SizeTieredCompactionPolicyTest {
+
+    private static final long MIN_TABLE_SIZE = 100;
+
+    private final CompactionPolicy policy = new SizeTieredCompactionPolicy(3, 4, 0.5, 1.5, MIN_TABLE_SIZE);
+
+    @Test
+    void similarTablesMerged() {
+        final List<TableInfo> tables = tables(1000, 1100);
+        assertNull(policy.pickCompaction(tables));
+
+        tables.add(table(3, 900));
+        final Compaction compaction = policy.pickCompaction(tables);
+        assertNotNull(compaction);
+        assertEquals(List.of(1, 2, 3), generations(compaction));
+        assertEquals(0, compaction.getOutputLevel());
+        assertEquals(Long.MAX_VALUE, compaction.getMaxOutputTableSize());
+    }
+
+    @Test
+    void dissimilarTablesSplit() {
+        // The big tables around the small ones aren't in their bucket, so the buckets are contiguous
+        assertNull(policy.pickCompaction(tables(10_000, 1000, 1000, 10_000, 10_000)));
+
+        final Compaction compaction = policy.pickCompaction(tables(10_000, 1000, 1000, 1000, 10_000));
+        assertNotNull(compaction);
+        assertEquals(List.of(2, 3, 4), generations(compaction));
+    }
+
+    @Test
+    void smallestBucketFirst() {
+        final Compaction compaction = policy.pickCompaction(tables(10_000, 10_000, 10_000, 1000, 1000, 1000));
+        assertNotNull(compaction);
+        assertEquals(List.of(4, 5, 6), generations(compaction));
+    }
+
+    @Test
+    void smallTablesInOneBucket() {
+        // The sizes of the tables below the min size aren't compared
+        final Compaction compaction = policy.pickCompaction(tables(1000, 5, 90, 30));
+        assertNotNull(compaction);
+        assertEquals(List.of(2, 3, 4), generations(compaction));
+    }
+
+    @Test
+    void oldestTablesUpToMaxThreshold() {
+        final Compaction compaction = policy.pickCompaction(tables(1000, 1000, 1000, 1000, 1000, 1000));
+        assertNotNull(compaction);
+        assertEquals(List.of(1, 2, 3, 4), generations(compaction));
+    }
+
+    @Test
+    void deeperLevelsIgnored() {
+        final List<TableInfo> tables = new ArrayList<>();
+        for (int generation = 1; generation <= 3; generation++) {
+            tables.add(new TableInfo(generation, 1, 1000, 1, buffer("a"), buffer("z")));
+        }
+        tables.add(table(4, 1000));
+        tables.add(table(5, 1000));
+        assertNull(policy.pickCompaction(tables));
+    }
+
+    @Test
+    void invalidParameters() {
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionPolicy(1, 4, 0.5, 1.5, 0));
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionPolicy(4, 3, 0.5, 1.5, 0));
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionPolicy(4, 8, 1.5, 1.5, 0));
+    }
+
+    /**
+     * Creates the level 0 tables from the oldest to the newest with the generations starting from 1.
+     */
+    @NotNull
+    private static List<TableInfo> tables(final long... sizes) {
+        final List<TableInfo> tables = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i++) {
+            tables.add(table(i + 1, sizes[i]));
+        }
+        return tables;
+    }
+
+    @NotNull
+    private static TableInfo table(final int generation, final long size) {
+        return new TableInfo(generation, 0, size, 1, buffer("a"), buffer("z"));
+    }
+
+    @NotNull
+    private static List<Integer> generations(@NotNull final Compaction compaction) {
+        final List<Integer> generations = new ArrayList<>();
+        for (final TableInfo input : compaction.getInputs()) {
+            generations.add(input.getGeneration());
+        }
+        return generations;
+    }
+
+    @NotNull
+    private static ByteBuffer buffer(@NotNull final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,134 @@
+package ru.mail.polis.zvladn7;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SubcompactionTest {
+
+    private static final int FLUSH_SIZE = 64 * 1024;
+    private static final long TABLE_SIZE = 16 * 1024;
+    private static final int AMOUNT = 5000;
+    private static final int ROUNDS = 3;
+
+    @Test
+    void rangesKeepEveryKeyOnce(@TempDir File data) throws IOException {
+        final LsmDAOConfig config = LsmDAOConfig.builder()
+                .compactionPolicy(new LeveledCompactionPolicy(4, TABLE_SIZE, 4 * TABLE_SIZE, 10, 4))
+                .maxSubcompactions(4)
+                .build();
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE, config)) {
+            for (int i = 0; i < AMOUNT; i++) {
+                dao.upsert(key(i), value(i, 0));
+            }
+            // The snapshot keeps the first versions, so the merged keys have several versions each
+            try (Snapshot snapshot = dao.snapshot()) {
+                for (int round = 1; round < ROUNDS; round++) {
+                    for (int i = 0; i < AMOUNT; i++) {
+                        if (i % 10 == round) {
+                            dao.remove(key(i));
+                        } else {
+                            dao.upsert(key(i), value(i, round));
+                        }
+                    }
+                }
+                dao.compact();
+
+                final Iterator<Record> iter = snapshot.iterator(ByteBuffer.allocate(0));
+                for (int i = 0; i < AMOUNT; i++) {
+                    final Record record = iter.next();
+                    assertEquals(key(i), record.getKey());
+                    assertEquals(value(i, 0), record.getValue());
+                }
+                assertFalse(iter.hasNext());
+                checkNewest(dao);
+            }
+        }
+
+        checkLevels(data);
+        try (LsmDAOImpl dao = new LsmDAOImpl(data, FLUSH_SIZE, config)) {
+            checkNewest(dao);
+        }
+    }
+
+    private static void checkNewest(@NotNull final LsmDAOImpl dao) throws IOException {
+        final Iterator<Record> iter = dao.iterator(ByteBuffer.allocate(0));
+        for (int i = 0; i < AMOUNT; i++) {
+            if (i % 10 == ROUNDS - 1) {
+                continue;
+            }
+            final Record record = iter.next();
+            assertEquals(key(i), record.getKey());
+            assertEquals(value(i, ROUNDS - 1), record.getValue());
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    /**
+     * Checks that the tables of every deeper level don't overlap, so all the versions of a key are in one table.
+     */
+    private static void checkLevels(@NotNull final File data) throws IOException {
+        final File[] files = data.listFiles((dir, name) -> name.matches("\\d+_\\d+\\.dat"));
+        assertNotNull(files);
+        final Map<Integer, List<ByteBuffer[]>> ranges = new HashMap<>();
+        for (final File file : files) {
+            final String[] parts = file.getName().replace(".dat", "").split("_");
+            final int generation = Integer.parseInt(parts[0]);
+            final int level = Integer.parseInt(parts[1]);
+            final SSTable table = new SSTable(file, generation, level, generation, null);
+            try {
+                ranges.computeIfAbsent(level, l -> new ArrayList<>())
+                        .add(new ByteBuffer[]{copy(table.getMinKey()), copy(table.getMaxKey())});
+            } finally {
+                table.close();
+            }
+        }
+        // The compactions of the ranges wrote a level of several tables
+        assertTrue(ranges.values().stream().anyMatch(level -> level.size() > 1));
+        for (final List<ByteBuffer[]> level : ranges.values()) {
+            level.sort((a, b) -> a[0].compareTo(b[0]));
+            for (int i = 1; i < level.size(); i++) {
+                assertTrue(level.get(i - 1)[1].compareTo(level.get(i)[0]) < 0);
+            }
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer mapped) {
+        final ByteBuffer copy = ByteBuffer.allocate(mapped.remaining());
+        copy.put(mapped).flip();
+        return copy;
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return buffer(String.format("key%06d", i));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i, final int round) {
+        return buffer("value of the key " + i + " in round " + round);
+    }
+
+    @NotNull
+    private static ByteBuffer buffer(@NotNull final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}